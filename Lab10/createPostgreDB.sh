@@ -10,3 +10,4 @@ cp ./*.dat /tmp/$LOGNAME/test/data/.
 sleep 1
 
 psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < create_tables.sql > /dev/null
+psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < inventory.sql > /dev/null
@@ -0,0 +1,20 @@
+-- Indexes and view used by the Java inventory service (java/). Run after
+-- create_tables.sql and triggers.sql.
+
+-- one row per part and site; transfers upsert on these with ON CONFLICT
+drop index if exists part_nyc_part_number;
+drop index if exists part_sfo_part_number;
+create unique index part_nyc_part_number on part_nyc (part_number);
+create unique index part_sfo_part_number on part_sfo (part_number);
+create index part_nyc_supplier_color on part_nyc (supplier, color);
+create index part_sfo_supplier_color on part_sfo (supplier, color);
+
+-- both sites as one relation; filters on it are pushed into each branch,
+-- so lookups still use the per-site indexes
+create or replace view part_all as
+    select 'nyc'::text as site, part_number, supplier, color, on_hand, descr from part_nyc
+    union all
+    select 'sfo'::text as site, part_number, supplier, color, on_hand, descr from part_sfo;
+
+analyze part_nyc;
+analyze part_sfo;
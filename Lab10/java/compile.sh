@@ -0,0 +1,5 @@
+#! /bin/bash
+# uses the PostgreSQL driver shipped with phase3 and the shared runtime in common/
+rm -rf bin/*.class
+mkdir -p bin
+javac -cp "../../phase3/code/java/lib/*" src/*.java ../../common/java/src/*.java -d bin/
@@ -0,0 +1,7 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Example: ./run.sh $LOGNAME"_DB" 5432 $USER
+java -cp "../../phase3/code/java/lib/*":bin/ InventoryService $DBNAME $PORT $USER
@@ -0,0 +1,327 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class defines the parts inventory service over the two site tables,
+ * part_nyc and part_sfo. Availability is one query over the part_all view,
+ * whose filters reach the per-site indexes from inventory.sql. Restocks
+ * insert in batches with part numbers drawn from part_number_seq a block at
+ * a time, and transfers move stock between sites in one transaction.
+ *
+ */
+
+public class InventoryService {
+	/**
+	 * The inventory sites and their tables.
+	 */
+	public enum Site {
+		NYC("part_nyc"),
+		SFO("part_sfo");
+
+		public final String table;
+
+		Site(String table){
+			this.table = table;
+		}
+	}
+
+	private final SqlRunner _runner;
+	private final int _batchSize;
+	private final int _sequenceBlock;
+	// part numbers drawn from the sequence but not yet used
+	private final long[] _numbers;
+	private int _next = 0;
+	private int _end = 0;
+
+	/**
+	 * Creates a service over a runner. Restocks send -Dinventory.batch.size
+	 * rows per batch (default 500) and draw -Dinventory.seq.block part
+	 * numbers per sequence round trip (default 100).
+	 */
+	public InventoryService(SqlRunner runner){
+		this._runner = runner;
+		this._batchSize = Integer.getInteger("inventory.batch.size", 500);
+		this._sequenceBlock = Integer.getInteger("inventory.seq.block", 100);
+		this._numbers = new long[this._sequenceBlock];
+	}
+
+	/**
+	 * Method to list the stock on hand at both sites, optionally narrowed
+	 * by part number, supplier and color. Each filter left null matches
+	 * everything; the statement differs per combination of filters so each
+	 * one gets a plan that uses the matching index.
+	 *
+	 * @return one record per site and part: site, part_number, supplier,
+	 * color, on_hand, descr
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<List<String>> availability(Integer partNumber, Integer supplier, Integer color) throws SQLException {
+		StringBuilder query = new StringBuilder(
+			"SELECT site, part_number, supplier, color, on_hand, descr FROM part_all WHERE on_hand > 0");
+		List<Object> params = new ArrayList<Object>();
+		if(partNumber != null) {
+			query.append(" AND part_number = ?");
+			params.add(partNumber);
+		}
+		if(supplier != null) {
+			query.append(" AND supplier = ?");
+			params.add(supplier);
+		}
+		if(color != null) {
+			query.append(" AND color = ?");
+			params.add(color);
+		}
+		query.append(" ORDER BY part_number, site");
+		return _runner.list(query.toString(), params.toArray());
+	}
+
+	/**
+	 * A part arriving at a site.
+	 */
+	public static class Restock {
+		public final int supplier;
+		public final int color;
+		public final int onHand;
+		public final String descr;
+
+		public Restock(int supplier, int color, int onHand, String descr){
+			this.supplier = supplier;
+			this.color = color;
+			this.onHand = onHand;
+			this.descr = descr;
+		}
+	}
+
+	/**
+	 * Method to add new parts to a site. The rows are inserted in batches in
+	 * one transaction, so either all of them are added or none is.
+	 *
+	 * @param site the receiving site
+	 * @param parts the parts to add
+	 * @return the part numbers given to the parts, in order
+	 * @throws java.sql.SQLException when the inserts fail
+	 */
+	public long[] restock(Site site, List<Restock> parts) throws SQLException {
+		long[] numbers = new long[parts.size()];
+		try (ConnectionPool.Pooled conn = _runner.pool().borrow();
+		     StatementMetrics.Timer timer = _runner.metrics().start("restock " + site.table)) {
+			for(int i = 0; i < numbers.length; ++i) {
+				numbers[i] = nextPartNumber(conn);
+			}
+			conn.connection.setAutoCommit(false);
+			try {
+				PreparedStatement insert = conn.prepare("INSERT INTO " + site.table +
+					" (part_number, supplier, color, on_hand, descr) VALUES (?, ?, ?, ?, ?)");
+				for(int i = 0; i < numbers.length; ++i) {
+					Restock part = parts.get(i);
+					insert.setLong(1, numbers[i]);
+					insert.setInt(2, part.supplier);
+					insert.setInt(3, part.color);
+					insert.setInt(4, part.onHand);
+					insert.setString(5, part.descr);
+					insert.addBatch();
+					if((i + 1) % _batchSize == 0) insert.executeBatch();
+				}
+				insert.executeBatch();
+				conn.connection.commit();
+				timer.rows(numbers.length);
+			} catch(SQLException e) {
+				conn.connection.rollback();
+				throw e;
+			} finally {
+				conn.connection.setAutoCommit(true);
+			}
+		}
+		return numbers;
+	}
+
+	/*
+	 * Returns the next part number, drawing a new block from the sequence in
+	 * one round trip when the cached ones run out. Numbers left in a block
+	 * when the service stops are skipped, as with a sequence's own CACHE.
+	 */
+	private synchronized long nextPartNumber(ConnectionPool.Pooled conn) throws SQLException {
+		if(_next == _end) {
+			PreparedStatement stmt = conn.prepare("SELECT nextval('part_number_seq') FROM generate_series(1, ?)");
+			stmt.setInt(1, _sequenceBlock);
+			ResultSet rs = stmt.executeQuery();
+			_next = 0;
+			_end = 0;
+			try {
+				while(rs.next()) {
+					_numbers[_end++] = rs.getLong(1);
+				}
+			} finally {
+				rs.close();
+			}
+		}
+		return _numbers[_next++];
+	}
+
+	/**
+	 * Method to move stock of a part from one site to the other. The part's
+	 * rows at both sites are locked in site order, so transfers in opposite
+	 * directions cannot deadlock. A site without the part gets a new row
+	 * under the same part number; the insert is an upsert on the unique
+	 * part_number index, so two transfers racing to create that row add
+	 * to one row instead of leaving two.
+	 *
+	 * @return the quantity left at the source site
+	 * @throws java.sql.SQLException when the source site does not have the
+	 * part or enough of it (SQLState P0002 and 22003), or the update fails
+	 */
+	public int transfer(int partNumber, Site from, Site to, int quantity) throws SQLException {
+		if(from == to || quantity <= 0) throw new IllegalArgumentException("A transfer needs two sites and a positive quantity");
+		try (ConnectionPool.Pooled conn = _runner.pool().borrow();
+		     StatementMetrics.Timer timer = _runner.metrics().start("transfer " + from.table + " " + to.table)) {
+			conn.connection.setAutoCommit(false);
+			try {
+				int[] onHand = new int[Site.values().length];
+				for(Site site : Site.values()) {
+					onHand[site.ordinal()] = lockOnHand(conn, site, partNumber);
+				}
+				if(onHand[from.ordinal()] < 0) {
+					//P0002 is no_data_found
+					throw new SQLException("Part " + partNumber + " is not stocked at " + from, "P0002");
+				}
+				if(onHand[from.ordinal()] < quantity) {
+					//22003 is numeric_value_out_of_range
+					throw new SQLException("Only " + onHand[from.ordinal()] + " of part " + partNumber + " at " + from, "22003");
+				}
+				PreparedStatement take = conn.prepare("UPDATE " + from.table + " SET on_hand = on_hand - ? WHERE part_number = ?");
+				take.setInt(1, quantity);
+				take.setInt(2, partNumber);
+				take.executeUpdate();
+				PreparedStatement give = conn.prepare("INSERT INTO " + to.table + " (part_number, supplier, color, on_hand, descr)" +
+					" SELECT part_number, supplier, color, ?, descr FROM " + from.table + " WHERE part_number = ?" +
+					" ON CONFLICT (part_number) DO UPDATE SET on_hand = " + to.table + ".on_hand + EXCLUDED.on_hand");
+				give.setInt(1, quantity);
+				give.setInt(2, partNumber);
+				give.executeUpdate();
+				conn.connection.commit();
+				timer.rows(1);
+				return onHand[from.ordinal()] - quantity;
+			} catch(SQLException e) {
+				conn.connection.rollback();
+				throw e;
+			} finally {
+				conn.connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/*
+	 * Locks the part's row at a site and returns its quantity, or -1 when
+	 * the site does not stock the part.
+	 */
+	private static int lockOnHand(ConnectionPool.Pooled conn, Site site, int partNumber) throws SQLException {
+		PreparedStatement stmt = conn.prepare("SELECT on_hand FROM " + site.table + " WHERE part_number = ? FOR UPDATE");
+		stmt.setInt(1, partNumber);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return rs.next() ? rs.getInt(1) : -1;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * The console front end.
+	 *
+	 * @param args the database name, port and user
+	 */
+	public static void main(String[] args){
+		if(args.length != 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + InventoryService.class.getName() + " <dbname> <port> <user>");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try (ConnectionPool pool = ConnectionPool.fromProperties(url, args[2], "")) {
+			pool.prime(1);
+			SqlRunner runner = new SqlRunner(pool);
+			InventoryService service = new InventoryService(runner);
+			boolean keepon = true;
+			while(keepon) {
+				System.out.println("INVENTORY");
+				System.out.println("---------");
+				System.out.println("1. Availability");
+				System.out.println("2. Restock from file");
+				System.out.println("3. Transfer between sites");
+				System.out.println("4. Statement statistics");
+				System.out.println("9. < EXIT");
+				try {
+					switch(Console.readChoice(in)) {
+						case 1:
+							List<List<String>> rows = service.availability(readOptional(in, "part number"),
+								readOptional(in, "supplier"), readOptional(in, "color"));
+							System.out.println("site\tpart_number\tsupplier\tcolor\ton_hand\tdescr");
+							for(List<String> row : rows) {
+								System.out.println(String.join("\t", row));
+							}
+							System.out.println("total row(s): " + rows.size());
+							break;
+						case 2:
+							Site site = readSite(in, "Receiving site");
+							System.out.print("\tFile of supplier,color,on_hand,descr lines: ");
+							long[] numbers = service.restock(site, readRestocks(in.readLine().trim()));
+							System.out.println("Added " + numbers.length + " part(s)" +
+								(numbers.length > 0 ? ", numbers " + numbers[0] + " to " + numbers[numbers.length - 1] : ""));
+							break;
+						case 3:
+							Integer part = readOptional(in, "part number");
+							Site from = readSite(in, "From site");
+							Site to = from == Site.NYC ? Site.SFO : Site.NYC;
+							Integer quantity = readOptional(in, "quantity");
+							if(part == null || quantity == null) throw new IllegalArgumentException("A part number and quantity are required");
+							int left = service.transfer(part, from, to, quantity);
+							System.out.println("Moved " + quantity + " to " + to + ", " + left + " left at " + from);
+							break;
+						case 4:
+							System.out.println(runner.pool());
+							System.out.println(runner.metrics());
+							break;
+						case 9: keepon = false; break;
+						default: System.out.println("Unrecognized choice!"); break;
+					}
+				} catch(Exception e) {
+					System.out.println(e.getMessage());
+				}
+			}
+		} catch(SQLException e) {
+			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+		}
+	}
+
+	private static Integer readOptional(BufferedReader in, String name) throws Exception {
+		System.out.print("\tEnter " + name + " (blank for any): ");
+		String input = in.readLine().trim();
+		return input.isEmpty() ? null : Integer.valueOf(input);
+	}
+
+	private static Site readSite(BufferedReader in, String prompt) throws Exception {
+		System.out.print("\t" + prompt + " (nyc/sfo): ");
+		return Site.valueOf(in.readLine().trim().toUpperCase());
+	}
+
+	private static List<Restock> readRestocks(String file) throws Exception {
+		List<Restock> parts = new ArrayList<Restock>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.trim().isEmpty()) continue;
+				String[] fields = line.split(",", 4);
+				parts.add(new Restock(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()),
+					Integer.parseInt(fields[2].trim()), fields.length > 3 ? fields[3] : null));
+			}
+		}
+		return parts;
+	}
+}
@@ -5,7 +5,11 @@ CREATE OR REPLACE FUNCTION get_part_number()
  RETURNS "trigger" AS
  $BODY$
  BEGIN
-   New.part_number:=nextval('part_number_seq');
+   -- part numbers already drawn by the caller, e.g. a batched restock
+   -- or a transfer between sites, are kept
+   IF New.part_number IS NULL THEN
+     New.part_number:=nextval('part_number_seq');
+   END IF;
    Return NEW;
  END;
  $BODY$
@@ -15,4 +19,10 @@ CREATE OR REPLACE FUNCTION get_part_number()
  BEFORE INSERT
  ON part_nyc
  FOR EACH ROW
+ EXECUTE PROCEDURE get_part_number();
+
+  CREATE TRIGGER PartNumberTrigger
+ BEFORE INSERT
+ ON part_sfo
+ FOR EACH ROW
  EXECUTE PROCEDURE get_part_number();
\ No newline at end of file
@@ -0,0 +1,271 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a small bounded pool of database connections shared by
+ * the console tools. Connections are opened on demand up to the pool size
+ * and handed out most recently used first; a caller waits at most the
+ * configured time for one to come back. Each pooled connection keeps its
+ * own cache of prepared statements, so a statement is parsed and planned by
+ * the server once per connection rather than once per call, remembers the
+ * statement_timeout last set on its session, and can cancel the statement
+ * it is running from another thread.
+ *
+ * Only JDBC 3 calls are used, so the pool runs on the older drivers some of
+ * the labs still ship with.
+ *
+ */
+
+public class ConnectionPool implements AutoCloseable {
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _statementCache;
+	private final long _waitMillis;
+	private final Semaphore _permits;
+	private final LinkedBlockingDeque<Pooled> _idle = new LinkedBlockingDeque<Pooled>();
+	private final AtomicLong _opened = new AtomicLong();
+	private final AtomicLong _borrowed = new AtomicLong();
+	private final AtomicLong _waited = new AtomicLong();
+	private volatile boolean _closed = false;
+
+	public ConnectionPool(String url, String user, String passwd, int size, int statementCache, long waitMillis){
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._statementCache = statementCache;
+		this._waitMillis = waitMillis;
+		this._permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Method to create a pool sized by -Ddb.pool.size (default 4), caching
+	 * -Ddb.statement.cache statements per connection (default 32) and
+	 * waiting at most -Ddb.pool.wait.ms for a connection (default 5000).
+	 */
+	public static ConnectionPool fromProperties(String url, String user, String passwd){
+		return new ConnectionPool(url, user, passwd,
+			Integer.getInteger("db.pool.size", 4),
+			Integer.getInteger("db.statement.cache", 32),
+			Long.getLong("db.pool.wait.ms", 5000L));
+	}
+
+	/**
+	 * Method to borrow a connection. Closing the returned object gives it
+	 * back to the pool.
+	 *
+	 * @return a connection with auto-commit on
+	 * @throws java.sql.SQLException when none frees up in time (SQLState
+	 * 53300) or a new one cannot be opened
+	 */
+	public Pooled borrow() throws SQLException {
+		if(_closed) throw new SQLException("Connection pool is closed", "08003");
+		boolean acquired = _permits.tryAcquire();
+		if(!acquired) {
+			_waited.incrementAndGet();
+			try {
+				acquired = _permits.tryAcquire(_waitMillis, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			//53300 is too_many_connections
+			if(!acquired) throw new SQLException("No database connection available within " + _waitMillis + "ms", "53300");
+		}
+		_borrowed.incrementAndGet();
+		Pooled pooled;
+		while((pooled = _idle.pollFirst()) != null) {
+			if(!pooled.connection.isClosed()) return pooled;
+			pooled.discard();
+		}
+		try {
+			Connection conn = DriverManager.getConnection(_url, _user, _passwd);
+			_opened.incrementAndGet();
+			return new Pooled(conn);
+		} catch(SQLException e) {
+			_permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to open the first n connections ahead of use.
+	 *
+	 * @throws java.sql.SQLException when a connection cannot be opened
+	 */
+	public void prime(int n) throws SQLException {
+		Pooled[] primed = new Pooled[n];
+		try {
+			for(int i = 0; i < n; ++i) {
+				primed[i] = borrow();
+			}
+		} finally {
+			for(Pooled pooled : primed) {
+				if(pooled != null) pooled.close();
+			}
+		}
+	}
+
+	private void giveBack(Pooled pooled){
+		if(_closed || pooled.broken) {
+			pooled.discard();
+		} else {
+			_idle.offerFirst(pooled);
+		}
+		_permits.release();
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still borrowed are closed when they come back.
+	 */
+	public void close(){
+		_closed = true;
+		Pooled pooled;
+		while((pooled = _idle.pollFirst()) != null) {
+			pooled.discard();
+		}
+	}
+
+	public String toString(){
+		return "Connection pool: " + _opened.get() + " opened, " + _idle.size() + " idle, " + _borrowed.get() + " borrows, " + _waited.get() + " waited";
+	}
+
+	/**
+	 * A borrowed connection and its statement cache.
+	 */
+	public class Pooled implements AutoCloseable {
+		public final Connection connection;
+		private final Map<String, PreparedStatement> _statements;
+		private boolean broken = false;
+		//session statement_timeout in seconds, -1 until first set
+		private int _timeoutSeconds = -1;
+		//statement cancel() interrupts, the last one handed out
+		private volatile Statement _current = null;
+
+		Pooled(Connection connection){
+			this.connection = connection;
+			this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+		}
+
+		/**
+		 * Method to return the cached prepared statement for the SQL,
+		 * preparing it on first use. Parameters left from the previous use
+		 * are cleared.
+		 *
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = _statements.get(sql);
+			if(stmt != null) {
+				stmt.clearParameters();
+				_current = stmt;
+				return stmt;
+			}
+			stmt = connection.prepareStatement(sql);
+			_current = stmt;
+			_statements.put(sql, stmt);
+			if(_statements.size() > _statementCache) {
+				Iterator<PreparedStatement> eldest = _statements.values().iterator();
+				closeQuietly(eldest.next());
+				eldest.remove();
+			}
+			return stmt;
+		}
+
+		/**
+		 * Method to create a plain statement that is not cached, e.g. for
+		 * COPY or EXPLAIN; the caller closes it.
+		 *
+		 * @throws java.sql.SQLException when the statement cannot be created
+		 */
+		public Statement createStatement() throws SQLException {
+			Statement stmt = connection.createStatement();
+			_current = stmt;
+			return stmt;
+		}
+
+		/**
+		 * Method to limit the statements that follow on the server side with
+		 * SET statement_timeout, which servers since 7.3 enforce whatever the
+		 * driver does with setQueryTimeout. Outside a transaction the value
+		 * is kept for the session and only sent when it changes; inside one
+		 * it is set with SET LOCAL, which ends with the transaction, so a
+		 * rollback cannot leave the remembered value wrong.
+		 *
+		 * @param seconds the limit, 0 for none
+		 * @throws java.sql.SQLException when the setting cannot be sent
+		 */
+		public void setStatementTimeout(int seconds) throws SQLException {
+			boolean local = !connection.getAutoCommit();
+			if(!local && seconds == _timeoutSeconds) return;
+			Statement set = connection.createStatement();
+			try {
+				set.execute((local ? "SET LOCAL" : "SET") + " statement_timeout = " + seconds * 1000L);
+			} finally {
+				set.close();
+			}
+			if(!local) _timeoutSeconds = seconds;
+		}
+
+		/**
+		 * Method to cancel the statement this connection is running, if any.
+		 * It is safe to call from another thread.
+		 *
+		 * @return true if the last statement handed out was sent a cancel
+		 * request
+		 */
+		public boolean cancel(){
+			Statement stmt = _current;
+			if(stmt == null) return false;
+			try {
+				stmt.cancel();
+				return true;
+			} catch(SQLException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Method to mark the connection unusable, e.g. after a connection
+		 * error, so it is closed instead of returned to the pool.
+		 */
+		public void markBroken(){
+			broken = true;
+		}
+
+		public void close(){
+			_current = null;
+			giveBack(this);
+		}
+
+		void discard(){
+			for(PreparedStatement stmt : _statements.values()) {
+				closeQuietly(stmt);
+			}
+			_statements.clear();
+			try {
+				connection.close();
+			} catch(SQLException e) {
+				// ignored.
+			}
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try {
+			stmt.close();
+		} catch(SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.BufferedReader;
+
+/**
+ * This class defines the console input helpers shared by the menu-driven
+ * tools.
+ *
+ */
+
+public class Console {
+	/**
+	 * Method to read a menu choice, asking again until a number is given.
+	 *
+	 * @param in the console input
+	 * @return the number entered
+	 */
+	public static int readChoice(BufferedReader in) {
+		int input;
+		// returns only if a correct value is given.
+		do {
+			System.out.print("Please make your choice: ");
+			try { // read the integer, parse it and break.
+				input = Integer.parseInt(in.readLine());
+				break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid!");
+				continue;
+			}//end try
+		}while (true);
+		return input;
+	}//end readChoice
+}
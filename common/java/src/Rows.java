@@ -0,0 +1,112 @@
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class defines the row handling shared by the console tools: printing
+ * a result as a tab separated table and mapping it into lists of strings.
+ * Rows are consumed one at a time, so printing works the same on a fully
+ * fetched result and on one streamed in fetch-size chunks.
+ *
+ */
+
+public class Rows {
+	/**
+	 * Receiver of the rows of a streamed query, one call per row.
+	 */
+	public interface Handler {
+		void row(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Prints rows as they come, with the column names before the first one.
+	 */
+	public static class Printer implements Handler {
+		private final PrintStream _out;
+		private final StringBuilder _line = new StringBuilder(256);
+		private int _columns = -1;
+		private long _count = 0;
+
+		public Printer(PrintStream out){
+			this._out = out;
+		}
+
+		public void row(ResultSet rs) throws SQLException {
+			if(_columns < 0) {
+				ResultSetMetaData rsmd = rs.getMetaData();
+				_columns = rsmd.getColumnCount();
+				for(int i = 1; i <= _columns; ++i) {
+					_line.append(rsmd.getColumnName(i)).append('\t');
+				}
+				_out.println(_line);
+			}
+			_line.setLength(0);
+			for(int i = 1; i <= _columns; ++i) {
+				_line.append(rs.getString(i)).append('\t');
+			}
+			_out.println(_line);
+			++_count;
+		}
+
+		public long count(){
+			return _count;
+		}
+	}
+
+	/**
+	 * Collects rows as lists of column values.
+	 */
+	public static class Collector implements Handler {
+		private final List<List<String>> _rows = new ArrayList<List<String>>();
+		private int _columns = -1;
+
+		public void row(ResultSet rs) throws SQLException {
+			if(_columns < 0) _columns = rs.getMetaData().getColumnCount();
+			List<String> record = new ArrayList<String>(_columns);
+			for(int i = 1; i <= _columns; ++i) {
+				record.add(rs.getString(i));
+			}
+			_rows.add(record);
+		}
+
+		public List<List<String>> rows(){
+			return _rows;
+		}
+	}
+
+	/**
+	 * Method to feed every row of a result set to a handler.
+	 *
+	 * @return the number of rows
+	 * @throws java.sql.SQLException when reading the result fails
+	 */
+	public static long each(ResultSet rs, Handler handler) throws SQLException {
+		long count = 0;
+		while(rs.next()) {
+			handler.row(rs);
+			++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Method to print a result set to a stream.
+	 *
+	 * @return the number of rows printed
+	 */
+	public static int print(ResultSet rs, PrintStream out) throws SQLException {
+		return (int) each(rs, new Printer(out));
+	}
+
+	/**
+	 * Method to return a result set as a list of records.
+	 */
+	public static List<List<String>> list(ResultSet rs) throws SQLException {
+		Collector collector = new Collector();
+		each(rs, collector);
+		return collector.rows();
+	}
+}
@@ -0,0 +1,223 @@
+import java.io.PrintStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the data-access runtime shared by the console tools.
+ * Every call borrows a connection from a ConnectionPool, runs a cached
+ * prepared statement with the given parameters under a server-side
+ * statement timeout, and records its time in StatementMetrics. Queries can
+ * be streamed row by row in fetch-size chunks instead of being loaded whole
+ * where the driver supports it, and are read whole where it does not.
+ *
+ * The runner remembers the connection of the call in progress, so
+ * cancel() stops it from another thread; tools that serve several sessions
+ * give each one its own runner over a shared pool. A runner holds no
+ * connection between calls and does not own its pool, which is closed by
+ * whoever opened it.
+ *
+ */
+
+public class SqlRunner {
+	/**
+	 * A unit of work on a borrowed connection, for statements update and
+	 * stream do not cover, e.g. COPY or INSERT ... RETURNING.
+	 */
+	public interface Call<T> {
+		/**
+		 * @param conn the connection, with the runner's timeout set
+		 * @param timer the call's timing, to be given the row count
+		 */
+		T run(ConnectionPool.Pooled conn, StatementMetrics.Timer timer) throws SQLException;
+	}
+
+	private final ConnectionPool _pool;
+	private final StatementMetrics _metrics;
+	private volatile int _timeoutSeconds;
+	private final int _fetchSize;
+	//cleared once the driver refuses a fetch size, e.g. the 7.3 driver lab6 ships with
+	private volatile boolean _cursors = true;
+	//connection of the call in progress, which cancel() interrupts
+	private volatile ConnectionPool.Pooled _active = null;
+	private final AtomicLong _failures = new AtomicLong();
+
+	/**
+	 * Creates a runner over a pool. Statements time out after
+	 * -Ddb.timeout.s seconds (default 30) and streamed queries fetch
+	 * -Ddb.fetch.size rows at a time (default 500).
+	 */
+	public SqlRunner(ConnectionPool pool){
+		this._pool = pool;
+		this._metrics = StatementMetrics.shared();
+		this._timeoutSeconds = Integer.getInteger("db.timeout.s", 30);
+		this._fetchSize = Integer.getInteger("db.fetch.size", 500);
+	}
+
+	/**
+	 * Method to set the statement timeout of the calls that follow.
+	 *
+	 * @param seconds the limit, 0 for none
+	 */
+	public void setTimeout(int seconds){
+		this._timeoutSeconds = seconds;
+	}
+
+	/**
+	 * Method to run a unit of work on a borrowed connection under the
+	 * runner's timeout, timed under the given label. A connection error
+	 * keeps the connection from going back to the pool.
+	 *
+	 * @param label the statement recorded in StatementMetrics
+	 * @param call the work
+	 * @return what the work returns
+	 * @throws java.sql.SQLException when the work fails
+	 */
+	public <T> T call(String label, Call<T> call) throws SQLException {
+		ConnectionPool.Pooled conn = _pool.borrow();
+		_active = conn;
+		try (StatementMetrics.Timer timer = _metrics.start(label)) {
+			conn.setStatementTimeout(_timeoutSeconds);
+			return call.run(conn, timer);
+		} catch(SQLException e) {
+			_failures.incrementAndGet();
+			failed(conn, e);
+			throw e;
+		} finally {
+			_active = null;
+			conn.close();
+		}
+	}
+
+	/**
+	 * Method to cancel the call in progress on this runner, if any. It is
+	 * safe to call from another thread.
+	 *
+	 * @return true if a statement was sent a cancel request
+	 */
+	public boolean cancel(){
+		ConnectionPool.Pooled conn = _active;
+		return conn != null && conn.cancel();
+	}
+
+	/**
+	 * Method to run an INSERT, UPDATE, DELETE or DDL statement.
+	 *
+	 * @param sql the statement, with ? for each parameter
+	 * @param params the parameter values
+	 * @return the number of rows changed
+	 * @throws java.sql.SQLException when the statement fails
+	 */
+	public int update(final String sql, final Object... params) throws SQLException {
+		return call(sql, new Call<Integer>() {
+			public Integer run(ConnectionPool.Pooled conn, StatementMetrics.Timer timer) throws SQLException {
+				int count = bind(conn, sql, params).executeUpdate();
+				timer.rows(count);
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * Method to run a query and hand its rows to a handler as they arrive.
+	 * The rows are fetched in chunks inside a read-only transaction, so
+	 * memory use does not grow with the result. With a driver that does
+	 * not support a fetch size the result is read whole instead.
+	 *
+	 * @return the number of rows
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public long stream(String sql, Rows.Handler handler, Object... params) throws SQLException {
+		return query(sql, handler, true, params);
+	}
+
+	/**
+	 * Method to run a query and print its rows to a stream as they arrive.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int print(String sql, PrintStream out, Object... params) throws SQLException {
+		return (int) stream(sql, new Rows.Printer(out), params);
+	}
+
+	/**
+	 * Method to run a query and return its rows as lists of strings. The
+	 * rows are all kept anyway, so no cursor is used for them.
+	 */
+	public List<List<String>> list(String sql, Object... params) throws SQLException {
+		Rows.Collector collector = new Rows.Collector();
+		query(sql, collector, false, params);
+		return collector.rows();
+	}
+
+	private long query(final String sql, final Rows.Handler handler, final boolean stream, final Object... params) throws SQLException {
+		return call(sql, new Call<Long>() {
+			public Long run(ConnectionPool.Pooled conn, StatementMetrics.Timer timer) throws SQLException {
+				PreparedStatement stmt = bind(conn, sql, params);
+				boolean cursor = stream && _cursors && fetchSize(stmt);
+				//the driver only uses a cursor for fetch size inside a transaction
+				if(cursor) conn.connection.setAutoCommit(false);
+				try {
+					ResultSet rs = stmt.executeQuery();
+					try {
+						long count = Rows.each(rs, handler);
+						timer.rows(count);
+						return count;
+					} finally {
+						rs.close();
+					}
+				} finally {
+					if(cursor) {
+						conn.connection.rollback();
+						conn.connection.setAutoCommit(true);
+					}
+				}
+			}
+		});
+	}
+
+	private static PreparedStatement bind(ConnectionPool.Pooled conn, String sql, Object[] params) throws SQLException {
+		PreparedStatement stmt = conn.prepare(sql);
+		for(int i = 0; i < params.length; ++i) {
+			stmt.setObject(i + 1, params[i]);
+		}
+		return stmt;
+	}
+
+	/*
+	 * Sets the fetch size, or returns false and stops trying once the
+	 * driver reports that it does not implement one.
+	 */
+	private boolean fetchSize(PreparedStatement stmt){
+		try {
+			stmt.setFetchSize(_fetchSize);
+			return true;
+		} catch(SQLException e) {
+			_cursors = false;
+			return false;
+		}
+	}
+
+	private static void failed(ConnectionPool.Pooled conn, SQLException e){
+		//class 08 is connection_exception
+		if(e.getSQLState() != null && e.getSQLState().startsWith("08")) conn.markBroken();
+	}
+
+	/**
+	 * Method to return the number of calls on this runner that failed,
+	 * whether or not the caller went on to handle the error.
+	 */
+	public long failures(){
+		return _failures.get();
+	}
+
+	public ConnectionPool pool(){
+		return _pool;
+	}
+
+	public StatementMetrics metrics(){
+		return _metrics;
+	}
+}
@@ -0,0 +1,129 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines per-statement timing shared by every tool in the
+ * process. Statements are grouped by shape, i.e. with number and string
+ * literals replaced by ?, so the same query with different inputs adds up
+ * in one line.
+ *
+ */
+
+public class StatementMetrics {
+	private static final StatementMetrics SHARED = new StatementMetrics();
+
+	private final ConcurrentHashMap<String, Shape> _shapes = new ConcurrentHashMap<String, Shape>();
+
+	public static StatementMetrics shared(){
+		return SHARED;
+	}
+
+	/**
+	 * Method to start timing one execution; close the returned timer when
+	 * the statement and its rows are done.
+	 */
+	public Timer start(String sql){
+		return new Timer(this, sql);
+	}
+
+	void record(String sql, long nanos, long rows, boolean failed){
+		String shape = shape(sql);
+		Shape stats = _shapes.get(shape);
+		if(stats == null) {
+			Shape created = new Shape(shape);
+			stats = _shapes.putIfAbsent(shape, created);
+			if(stats == null) stats = created;
+		}
+		stats.calls.incrementAndGet();
+		stats.nanos.addAndGet(nanos);
+		stats.rows.addAndGet(rows);
+		if(failed) stats.failures.incrementAndGet();
+		long max;
+		while(nanos > (max = stats.maxNanos.get()) && !stats.maxNanos.compareAndSet(max, nanos)) {
+			// retry until the larger value sticks
+		}
+	}
+
+	static String shape(String sql){
+		return sql.replaceAll("'([^']|'')*'", "?").replaceAll("\\b\\d+(\\.\\d+)?\\b", "?").replaceAll("\\s+", " ").trim();
+	}
+
+	/**
+	 * Method to forget every recorded timing.
+	 */
+	public void clear(){
+		_shapes.clear();
+	}
+
+	/**
+	 * Method to return the statement shapes that took the most total time,
+	 * one per line.
+	 */
+	public String top(int n){
+		List<Shape> shapes = new ArrayList<Shape>(_shapes.values());
+		Collections.sort(shapes, new Comparator<Shape>() {
+			public int compare(Shape a, Shape b){
+				return Long.compare(b.nanos.get(), a.nanos.get());
+			}
+		});
+		StringBuilder result = new StringBuilder("calls\ttotal ms\tavg ms\tmax ms\trows\tfailed\tstatement");
+		for(Shape shape : shapes.subList(0, Math.min(n, shapes.size()))) {
+			long calls = shape.calls.get();
+			result.append('\n').append(calls).append('\t').append(shape.nanos.get() / 1000000).append('\t')
+				.append(String.format("%.2f", shape.nanos.get() / 1e6 / Math.max(1, calls))).append('\t')
+				.append(shape.maxNanos.get() / 1000000).append('\t').append(shape.rows.get()).append('\t')
+				.append(shape.failures.get()).append('\t')
+				.append(shape.sql.length() > 100 ? shape.sql.substring(0, 100) + "..." : shape.sql);
+		}
+		return result.toString();
+	}
+
+	public String toString(){
+		return top(Integer.getInteger("db.metrics.top", 10));
+	}
+
+	static class Shape {
+		final String sql;
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+
+		Shape(String sql){
+			this.sql = sql;
+		}
+	}
+
+	/**
+	 * Timing of one execution, recorded as failed unless rows() is called.
+	 */
+	public static class Timer implements AutoCloseable {
+		private final StatementMetrics _metrics;
+		private final String _sql;
+		private final long _start = System.nanoTime();
+		private long _rows = 0;
+		private boolean _done = false;
+
+		Timer(StatementMetrics metrics, String sql){
+			this._metrics = metrics;
+			this._sql = sql;
+		}
+
+		/**
+		 * Method to mark the execution successful with its row count.
+		 */
+		public void rows(long rows){
+			this._rows = rows;
+			this._done = true;
+		}
+
+		public void close(){
+			_metrics.record(_sql, System.nanoTime() - _start, _rows, !_done);
+		}
+	}
+}
@@ -145,3 +145,15 @@ COPY catalog (
 	cost)
 FROM 'catalog.txt'
 WITH DELIMITER ',';
+--
+-- Indexes for the EmbeddedSQL catalog queries. The catalog primary key
+-- (sid, pid) already serves lookups and grouping by sid; pid is indexed for
+-- joins coming from parts, cost for the price range queries, and
+-- (pname, color) for the part name and color filters.
+--
+CREATE INDEX catalog_cost_idx ON catalog (cost);
+CREATE INDEX catalog_pid_idx ON catalog (pid);
+CREATE INDEX parts_pname_color_idx ON parts (pname, color);
+ANALYZE suppliers;
+ANALYZE parts;
+ANALYZE catalog;
@@ -0,0 +1,161 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class defines an in-memory copy of the catalog joined with the part
+ * names, held in primitive arrays sorted by cost, so "cost lower than $x"
+ * is a binary search and a scan of the cheaper prefix instead of a round
+ * trip to the server. The copy is reloaded once it is older than its time
+ * to live; quotes read between reloads may miss the latest price changes.
+ *
+ */
+public class CatalogSnapshot {
+
+   private static final String LOAD =
+      "SELECT c.sid, c.pid, c.cost, p.pname " +
+      "FROM catalog c, parts p WHERE c.pid = p.pid AND c.cost IS NOT NULL " +
+      "ORDER BY c.cost";
+
+   private final SqlRunner _runner;
+   private final long _ttlMillis;
+
+   // one entry per catalog row, in cost order
+   private int[] _sid = new int[0];
+   private int[] _pid = new int[0];
+   private long[] _cents = new long[0];
+   private String[] _pname = new String[0];
+   private int _size = 0;
+   private long _loadedAt = 0;
+
+   /**
+    * Creates a snapshot that reloads after -Dcatalog.snapshot.ttl.s
+    * seconds (default 60).
+    *
+    * @param runner the runner the catalog is read through
+    */
+   public CatalogSnapshot (SqlRunner runner) {
+      this._runner = runner;
+      this._ttlMillis = Long.getLong("catalog.snapshot.ttl.s", 60L) * 1000;
+   }//end CatalogSnapshot
+
+   /**
+    * Method to read the whole catalog into the arrays, replacing the
+    * previous copy.
+    *
+    * @return the number of catalog rows loaded
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public synchronized int load () throws SQLException {
+      final int[] size = { 0 };
+      final int[][] sid = { new int[Math.max(16, this._size)] };
+      final int[][] pid = { new int[sid[0].length] };
+      final long[][] cents = { new long[sid[0].length] };
+      final String[][] pname = { new String[sid[0].length] };
+      this._runner.stream(LOAD, new Rows.Handler() {
+         public void row(ResultSet rs) throws SQLException {
+            int i = size[0]++;
+            if (i == sid[0].length) {
+               int grown = i * 2;
+               sid[0] = Arrays.copyOf(sid[0], grown);
+               pid[0] = Arrays.copyOf(pid[0], grown);
+               cents[0] = Arrays.copyOf(cents[0], grown);
+               pname[0] = Arrays.copyOf(pname[0], grown);
+            }//end if
+            sid[0][i] = rs.getInt(1);
+            pid[0][i] = rs.getInt(2);
+            cents[0][i] = rs.getBigDecimal(3).movePointRight(2).longValueExact();
+            // a NULL name is kept as null, as the query prints it
+            String name = rs.getString(4);
+            pname[0][i] = name == null ? null : name.trim();
+         }
+      });
+      this._sid = sid[0];
+      this._pid = pid[0];
+      this._cents = cents[0];
+      this._pname = pname[0];
+      this._size = size[0];
+      this._loadedAt = System.currentTimeMillis();
+      return this._size;
+   }//end load
+
+   private void refresh () throws SQLException {
+      if (System.currentTimeMillis() - this._loadedAt > this._ttlMillis) {
+         load();
+      }//end if
+   }//end refresh
+
+   /*
+    * Returns the number of entries cheaper than the given cost, i.e. the
+    * first index whose cost is not lower.
+    */
+   private int below (BigDecimal cost) {
+      // c < x holds for whole cents c exactly when c < ceil(x * 100)
+      long bound = cost.movePointRight(2).setScale(0, RoundingMode.CEILING).longValue();
+      int low = 0, high = this._size;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (this._cents[mid] < bound) low = mid + 1;
+         else high = mid;
+      }//end while
+      return low;
+   }//end below
+
+   /**
+    * Method to print the catalog rows cheaper than the given cost, the
+    * same way SELECT * FROM Catalog WHERE cost < x is printed.
+    *
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when the snapshot needed a reload and it failed
+    */
+   public synchronized int printCheaperThan (BigDecimal cost) throws SQLException {
+      refresh();
+      int count = below(cost);
+      if (count > 0) System.out.println("sid\tpid\tcost\t");
+      StringBuilder line = new StringBuilder(32);
+      for (int i = 0; i < count; ++i) {
+         line.setLength(0);
+         line.append(this._sid[i]).append('\t').append(this._pid[i]).append('\t');
+         appendCost(line, this._cents[i]).append('\t');
+         System.out.println(line);
+      }//end for
+      return count;
+   }//end printCheaperThan
+
+   /**
+    * Method to print the distinct names of the parts offered below the
+    * given cost.
+    *
+    * @return the number of names printed
+    * @throws java.sql.SQLException when the snapshot needed a reload and it failed
+    */
+   public synchronized int printPartNamesCheaperThan (BigDecimal cost) throws SQLException {
+      refresh();
+      int count = below(cost);
+      Set<String> seen = new HashSet<String>();
+      for (int i = 0; i < count; ++i) {
+         if (seen.add(this._pname[i])) {
+            if (seen.size() == 1) System.out.println("pname\t");
+            System.out.println(this._pname[i] + "\t");
+         }//end if
+      }//end for
+      return seen.size();
+   }//end printPartNamesCheaperThan
+
+   private static StringBuilder appendCost (StringBuilder line, long cents) {
+      line.append(cents / 100).append('.');
+      long fraction = cents % 100;
+      if (fraction < 10) line.append('0');
+      return line.append(fraction);
+   }//end appendCost
+
+   public synchronized String toString () {
+      return "Catalog snapshot: " + this._size + " row(s), " +
+         ((System.currentTimeMillis() - this._loadedAt) / 1000) + "s old";
+   }//end toString
+
+}//end CatalogSnapshot
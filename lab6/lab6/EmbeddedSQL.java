@@ -11,11 +11,7 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
@@ -29,8 +25,50 @@ import java.io.InputStreamReader;
  */
 public class EmbeddedSQL {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // The menu queries, prepared once per pooled connection and run with
+   // the user's input bound as parameters. Part names and colors are CHAR
+   // columns, so inputs are compared as bpchar, which ignores the padding
+   // and keeps the parts(pname, color) index usable.
+   static final String CHEAPER_THAN =
+      "SELECT * FROM Catalog WHERE cost < ?";
+   static final String PARTS_PER_SUPPLIER =
+      "SELECT s.sid, s.sname, COUNT(*) AS parts " +
+      "FROM suppliers s, catalog c WHERE s.sid = c.sid " +
+      "GROUP BY s.sid, s.sname ORDER BY s.sid";
+   static final String PARTS_PER_SUPPLIER_AT_LEAST =
+      "SELECT s.sid, s.sname, COUNT(*) AS parts " +
+      "FROM suppliers s, catalog c WHERE s.sid = c.sid " +
+      "GROUP BY s.sid, s.sname HAVING COUNT(*) >= ? ORDER BY s.sid";
+   static final String ONLY_COLOR_SUPPLIERS =
+      "SELECT s.sname, COUNT(*) AS parts " +
+      "FROM suppliers s, catalog c, parts p " +
+      "WHERE s.sid = c.sid AND c.pid = p.pid AND p.color = ?::bpchar " +
+      "AND NOT EXISTS (SELECT 1 FROM catalog c2, parts p2 " +
+      "WHERE c2.sid = s.sid AND c2.pid = p2.pid AND p2.color <> ?::bpchar) " +
+      "GROUP BY s.sid, s.sname ORDER BY s.sname";
+   static final String BOTH_COLORS_MOST_EXPENSIVE =
+      "SELECT s.sname, MAX(c.cost) AS cost " +
+      "FROM suppliers s, catalog c WHERE s.sid = c.sid " +
+      "AND EXISTS (SELECT 1 FROM catalog c1, parts p1 " +
+      "WHERE c1.sid = s.sid AND c1.pid = p1.pid AND p1.color = ?::bpchar) " +
+      "AND EXISTS (SELECT 1 FROM catalog c2, parts p2 " +
+      "WHERE c2.sid = s.sid AND c2.pid = p2.pid AND p2.color = ?::bpchar) " +
+      "GROUP BY s.sid, s.sname ORDER BY s.sname";
+   static final String PART_NAMES_CHEAPER_THAN =
+      "SELECT DISTINCT p.pname FROM parts p, catalog c " +
+      "WHERE p.pid = c.pid AND c.cost < ?";
+   static final String SUPPLIER_ADDRESSES_FOR_PART =
+      "SELECT DISTINCT s.sname, s.address " +
+      "FROM suppliers s, catalog c, parts p " +
+      "WHERE s.sid = c.sid AND c.pid = p.pid AND p.pname = ?::bpchar";
+
+   // pooled connections and prepared statements, shared with the other tools
+   // through common/java/src
+   private SqlRunner _runner = null;
+
+   // optional in-memory copy of the catalog for the cost range queries,
+   // enabled with -Dcatalog.snapshot=true
+   private CatalogSnapshot _snapshot = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -54,8 +92,13 @@ public class EmbeddedSQL {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool and its first connection
+         this._runner = new SqlRunner(ConnectionPool.fromProperties(url, user, passwd));
+         this._runner.pool().prime(1);
+         if (Boolean.getBoolean("catalog.snapshot")) {
+            this._snapshot = new CatalogSnapshot(this._runner);
+            this._snapshot.load();
+         }//end if
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,74 +111,35 @@ public class EmbeddedSQL {
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with ? for each parameter
+    * @param params the parameter values
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public void executeUpdate (String sql, Object... params) throws SQLException {
+      this._runner.update(sql, params);
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out as they are fetched.
     *
-    * @param query the input query string
+    * @param query the input query string, with ? for each parameter
+    * @param params the parameter values
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQuery (String query, Object... params) throws SQLException {
+      return this._runner.print(query, System.out, params);
    }//end executeQuery
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the pooled connections.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._runner != null){
+         this._runner.pool ().close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -219,69 +223,86 @@ public class EmbeddedSQL {
     * @int
     **/
    public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         }//end try
-      }while (true);
-      return input;
+      return Console.readChoice(in);
    }//end readChoice
 
+   /*
+    * Reads a cost typed at the prompt
+    **/
+   private static BigDecimal readCost() throws Exception {
+      System.out.print("\tEnter cost: $");
+      return new BigDecimal(in.readLine().trim());
+   }//end readCost
+
    public static void QueryExample(EmbeddedSQL esql){
       try{
-         String query = "SELECT * FROM Catalog WHERE cost < ";
-         System.out.print("\tEnter cost: $");
-         String input = in.readLine();
-         query += input;
-
-         int rowCount = esql.executeQuery(query);
+         BigDecimal cost = readCost();
+         int rowCount = esql._snapshot != null
+            ? esql._snapshot.printCheaperThan(cost)
+            : esql.executeQuery(CHEAPER_THAN, cost);
          System.out.println ("total row(s): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
    }//end QueryExample
-   
+
    public static void Query1(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         int rowCount = esql.executeQuery(PARTS_PER_SUPPLIER);
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query1
 
    public static void Query2(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         int rowCount = esql.executeQuery(PARTS_PER_SUPPLIER_AT_LEAST, 3);
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query2
 
    public static void Query3(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         int rowCount = esql.executeQuery(ONLY_COLOR_SUPPLIERS, "Green", "Green");
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query3
 
    public static void Query4(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         int rowCount = esql.executeQuery(BOTH_COLORS_MOST_EXPENSIVE, "Green", "Red");
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query4
 
    public static void Query5(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         BigDecimal cost = readCost();
+         int rowCount = esql._snapshot != null
+            ? esql._snapshot.printPartNamesCheaperThan(cost)
+            : esql.executeQuery(PART_NAMES_CHEAPER_THAN, cost);
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query5
 
    public static void Query6(EmbeddedSQL esql){
-      // Your code goes here.
-      // ...
-      // ...
+      try{
+         System.out.print("\tEnter part name: ");
+         String pname = in.readLine().trim();
+         int rowCount = esql.executeQuery(SUPPLIER_ADDRESSES_FOR_PART, pname);
+         System.out.println ("total row(s): " + rowCount);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }//end Query6
 
 }//end EmbeddedSQL
@@ -4,12 +4,11 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # Export classpath with the postgressql driver
-export CLASSPATH=$CLASSPATH:$PWD/pg73jdbc3.jar
+export CLASSPATH=$CLASSPATH:$PWD/pg73jdbc3.jar:$PWD
 
-# compile the java program
-javac EmbeddedSQL.java
+# compile the java program with the shared data-access runtime
+javac -d . ../../common/java/src/*.java *.java
 
 #run the java program
 #Use your database name, port number and login
 java EmbeddedSQL $USER"_DB" $PGPORT $USER
-
@@ -0,0 +1,11 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+WHAT=$4
+OUT=$5
+FORMAT=${6:-csv}
+
+# Example: ./export.sh flightDB 5432 user closed_request bills.csv.gz csv
+# WHAT is a report number (6-10) or a table name, OUT is a file or - for stdout
+java -cp lib/*:bin/ ReportExport $DBNAME $PORT $USER $WHAT $OUT $FORMAT $7
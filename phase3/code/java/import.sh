@@ -0,0 +1,11 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+KIND=$4
+FILE=$5
+
+# Example: ./import.sh flightDB 5432 user service_request history.csv
+# KIND is car, owns or service_request; rows failing the checks go to FILE.rejected
+# DIRECT bounds the off-heap VIN dictionary, about 30 bytes per car
+java -XX:MaxDirectMemorySize=${DIRECT:-2g} -cp lib/*:bin/ BulkImport $DBNAME $PORT $USER $KIND $FILE ${@:6}
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Example: ./migrate.sh flightDB 5432 user customer mechanic
+# Converts padded CHAR name/address columns to VARCHAR/TEXT while the shop runs
+java -Dshop.migrate.batch=${BATCH:-1000} -Dshop.migrate.pause.ms=${PAUSE:-50} -cp lib/*:bin/ SchemaMigration $DBNAME $PORT $USER ${@:4}
@@ -0,0 +1,10 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+SPEED=$4
+SESSIONS=$5
+
+# Example: ./replay.sh flightDB 5432 user 10 8 monday.log tuesday.log
+# Logs are recorded with: java -Dshop.record=monday.log -cp lib/*:bin/ MechanicShop ...
+java -Dshop.journal=replay.journal -cp lib/*:bin/ WorkloadReplay $DBNAME $PORT $USER $SPEED $SESSIONS ${@:6}
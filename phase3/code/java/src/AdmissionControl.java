@@ -0,0 +1,151 @@
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the admission control in front of the execution layer.
+ * Every statement is admitted under a WorkloadClass; each class runs at most
+ * its concurrency limit at once and queues at most its queue bound, so a
+ * burst of month-end reports waits among itself instead of in front of
+ * intake. Work that finds the queue full, or waits longer than the class
+ * timeout, is rejected with SQLState 53300. Writes committed by the
+ * CommitCoordinator, i.e. journal replay and dispatch, are admitted too: a
+ * group takes a slot in each class its writes belong to.
+ *
+ * The limits hold per process. Every MechanicShop process has its own
+ * lanes, so several processes against one database each run up to the
+ * class limits; the database-wide ceiling is the CONNECTION LIMIT of the
+ * role they log in as, which should cover the pools of all of them.
+ *
+ */
+
+public class AdmissionControl {
+	private static final AdmissionControl SHARED = new AdmissionControl();
+
+	private final Map<WorkloadClass, Lane> _lanes = new EnumMap<WorkloadClass, Lane>(WorkloadClass.class);
+
+	AdmissionControl(){
+		for(WorkloadClass workload : WorkloadClass.values()) {
+			_lanes.put(workload, new Lane(workload));
+		}
+	}
+
+	/**
+	 * Method to return the admission control shared by every session in
+	 * this process.
+	 */
+	public static AdmissionControl shared(){
+		return SHARED;
+	}
+
+	/**
+	 * Method to wait for a slot in the given workload class.
+	 *
+	 * @param workload the class the statement belongs to
+	 * @return a permit that must be closed when the statement finishes
+	 * @throws java.sql.SQLException when the class queue is full or the wait
+	 * runs past the class timeout
+	 */
+	public Permit admit(WorkloadClass workload) throws SQLException {
+		Lane lane = _lanes.get(workload);
+		if(lane.slots.tryAcquire()) {
+			lane.admitted.incrementAndGet();
+			return new Permit(lane);
+		}
+		int depth = lane.queued.incrementAndGet();
+		try {
+			if(depth > workload.queueBound) {
+				lane.rejected.incrementAndGet();
+				throw new SQLException(workload + " queue is full, try again later", "53300");
+			}
+			lane.maxQueued.accumulateAndGet(depth, Math::max);
+			long start = System.nanoTime();
+			if(!lane.slots.tryAcquire(workload.timeoutSeconds, TimeUnit.SECONDS)) {
+				lane.rejected.incrementAndGet();
+				throw new SQLException(workload + " wait timed out, try again later", "53300");
+			}
+			lane.waitNanos.addAndGet(System.nanoTime() - start);
+			lane.admitted.incrementAndGet();
+			return new Permit(lane);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for admission", "57014");
+		} finally {
+			lane.queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Method to print the queue depth, admissions and rejections of every
+	 * workload class.
+	 */
+	public void printStatistics(){
+		System.out.println("Admission limits of this process");
+		System.out.println("class\trunning\tqueued\tmax queued\tadmitted\trejected\tavg wait ms");
+		for(Lane lane : _lanes.values()) {
+			long admitted = lane.admitted.get();
+			System.out.println(lane.workload + "\t"
+				+ (lane.workload.concurrency - lane.slots.availablePermits()) + "/" + lane.workload.concurrency + "\t"
+				+ lane.queued.get() + "/" + lane.workload.queueBound + "\t"
+				+ lane.maxQueued.get() + "\t"
+				+ admitted + "\t"
+				+ lane.rejected.get() + "\t"
+				+ (admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lane.waitNanos.get() / admitted)));
+		}
+	}
+
+	/**
+	 * Method to zero the admission counts, waits and queue peaks of every
+	 * workload class, e.g. once warm-up traffic is done. Running and queued
+	 * statements are left as they are.
+	 */
+	public void resetStatistics(){
+		for(Lane lane : _lanes.values()) {
+			lane.maxQueued.set(0);
+			lane.admitted.set(0);
+			lane.rejected.set(0);
+			lane.waitNanos.set(0);
+		}
+	}
+
+	/**
+	 * A slot held by one running statement.
+	 */
+	public static class Permit implements AutoCloseable {
+		private final Lane _lane;
+		private boolean _released = false;
+
+		Permit(Lane lane){
+			this._lane = lane;
+		}
+
+		public WorkloadClass workload(){
+			return _lane.workload;
+		}
+
+		public void close(){
+			if(_released) return;
+			_released = true;
+			_lane.slots.release();
+		}
+	}
+
+	static class Lane {
+		final WorkloadClass workload;
+		final Semaphore slots;
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicInteger maxQueued = new AtomicInteger();
+		final AtomicLong admitted = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+
+		Lane(WorkloadClass workload){
+			this.workload = workload;
+			this.slots = new Semaphore(workload.concurrency, true);
+		}
+	}
+}
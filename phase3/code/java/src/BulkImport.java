@@ -0,0 +1,377 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
+
+/**
+ * This class defines the bulk import of car feeds, ownership links and
+ * service history, in the comma separated layout create.sql loads. Before a
+ * feed is sent to the server with COPY ... FROM STDIN, every row is checked
+ * in memory against a VinDictionary of the cars already in the database and
+ * the ids of its customers:
+ *
+ * car rows whose VIN is already known, in the database or earlier in the
+ * feed, are dropped as duplicates; owns rows must name a known customer and
+ * car and become its owner link; service_request rows must name a known
+ * customer and a car that customer owns or once owned, so history from a
+ * car's previous owners is kept along with the current owner's.
+ *
+ * The ownership_id and rid leading owns and service_request rows are not
+ * loaded: the triggers in triggers.sql number every new row from their
+ * sequences. The triggers on the target table run once per COPY, not once
+ * per row, so an import sends one change notification (a resync request
+ * past 1000 rows) and updates Customer_Fleet once per customer.
+ *
+ * Lines are handled as bytes from input to COPY, so a feed of any size
+ * creates no String per row and the dictionary lives off the heap. Rows
+ * that fail a check are written unchanged to a rejected file.
+ *
+ */
+
+public class BulkImport {
+	public enum Kind {
+		CAR("Car (vin, make, model, year)", 0, false),
+		OWNS("Owns (customer_id, car_vin)", 2, true),
+		SERVICE_REQUEST("Service_Request (customer_id, car_vin, date, odometer, complain)", 2, true);
+
+		final String target;
+		final int vinField;
+		//whether the line starts with an id the triggers assign anyway
+		final boolean dropsId;
+
+		Kind(String target, int vinField, boolean dropsId){
+			this.target = target;
+			this.vinField = vinField;
+			this.dropsId = dropsId;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Kind _kind;
+	//each car's owner is its value, stored as customer id + 1 so 0 means none
+	private final VinDictionary _vins;
+	private final BitSet _customers;
+	//sorted car id << 32 | customer id of every ownership, for service_request feeds
+	private final long[] _owned;
+	private final int _ownedCount;
+	private long _accepted = 0;
+	private long _duplicate = 0;
+	private long _unknown = 0;
+	private long _unknownCustomer = 0;
+	private long _notOwner = 0;
+	private long _invalid = 0;
+
+	private BulkImport(Kind kind, VinDictionary vins, BitSet customers, long[] owned, int ownedCount){
+		this._kind = kind;
+		this._vins = vins;
+		this._customers = customers;
+		this._owned = owned;
+		this._ownedCount = ownedCount;
+	}
+
+	/**
+	 * Method to prepare an import by loading the VINs of every car and,
+	 * unless cars are imported, the customer ids and the ownerships, streamed
+	 * with COPY.
+	 *
+	 * @param conn the connection to read from
+	 * @param kind what the feed holds
+	 * @throws java.sql.SQLException when the cars or owners cannot be read
+	 */
+	public static BulkImport prepare(Connection conn, Kind kind) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT (SELECT COUNT(*) FROM Car), (SELECT COUNT(*) FROM Owns)");
+		rs.next();
+		VinDictionary vins = new VinDictionary((int) Math.min(Integer.MAX_VALUE / 32, rs.getLong(1) + 1024));
+		long ownerships = rs.getLong(2);
+		stmt.close();
+
+		CopyOut cars = conn.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (SELECT vin FROM Car) TO STDOUT");
+		byte[] row;
+		while((row = cars.readFromCopy()) != null) {
+			vins.intern(row, 0, row.length - 1);
+		}
+		if(kind == Kind.CAR) return new BulkImport(kind, vins, null, null, 0);
+
+		BitSet customers = new BitSet();
+		CopyOut ids = conn.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (SELECT id FROM Customer) TO STDOUT");
+		while((row = ids.readFromCopy()) != null) {
+			int id = parseInt(row, 0, row.length - 1);
+			if(id >= 0) customers.set(id);
+		}
+
+		//later ownerships replace earlier ones, as they do at the desk
+		CopyOut owners = conn.unwrap(PGConnection.class).getCopyAPI().copyOut(
+			"COPY (SELECT car_vin, customer_id FROM Owns ORDER BY ownership_id) TO STDOUT");
+		long[] owned = kind == Kind.SERVICE_REQUEST ? new long[(int) Math.min(Integer.MAX_VALUE - 8, ownerships + 1024)] : null;
+		int ownedCount = 0;
+		while((row = owners.readFromCopy()) != null) {
+			int tab = indexOf(row, 0, row.length, (byte) '\t');
+			int id = vins.find(row, 0, tab);
+			int customer = parseInt(row, tab + 1, row.length - 1);
+			if(id == VinDictionary.ABSENT || customer < 0) continue;
+			if(owned == null) {
+				vins.setValue(id, customer + 1);
+			} else {
+				if(ownedCount == owned.length) owned = Arrays.copyOf(owned, (int) Math.min(Integer.MAX_VALUE - 8, owned.length * 2L));
+				owned[ownedCount++] = pair(id, customer);
+			}
+		}
+		if(owned != null) Arrays.sort(owned, 0, ownedCount);
+		return new BulkImport(kind, vins, customers, owned, ownedCount);
+	}
+
+	private static long pair(int car, int customer){
+		return ((long) car << 32) | customer;
+	}
+
+	/**
+	 * Method to check every line of a feed and COPY the accepted ones in
+	 * one statement, so the import is all or nothing on the server side.
+	 * The leading id of owns and service_request lines is left out of the
+	 * COPY, since the triggers assign a new one.
+	 *
+	 * @param conn the connection to import into
+	 * @param in the feed
+	 * @param rejected where lines that fail a check are written
+	 * @return the number of rows imported
+	 * @throws java.sql.SQLException when the COPY fails
+	 * @throws java.io.IOException when the feed cannot be read
+	 */
+	public long run(Connection conn, InputStream in, OutputStream rejected) throws SQLException, IOException {
+		CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY " + _kind.target + " FROM STDIN WITH DELIMITER ','");
+		try {
+			byte[] out = new byte[BUFFER_SIZE];
+			int used = 0;
+			Lines lines = new Lines(in);
+			while(lines.next()) {
+				if(lines.length == 0) continue;
+				if(!accept(lines.buf, lines.start, lines.length)) {
+					rejected.write(lines.buf, lines.start, lines.length);
+					rejected.write('\n');
+					continue;
+				}
+				int start = lines.start;
+				int length = lines.length;
+				if(_kind.dropsId) {
+					start = fieldStart(lines.buf, start, start + length, 1);
+					length -= start - lines.start;
+				}
+				if(used + length + 1 > out.length) {
+					copy.writeToCopy(out, 0, used);
+					used = 0;
+					if(length + 1 > out.length) out = new byte[length + 1];
+				}
+				System.arraycopy(lines.buf, start, out, used, length);
+				used += length;
+				out[used++] = '\n';
+			}
+			copy.writeToCopy(out, 0, used);
+			return copy.endCopy();
+		} finally {
+			if(copy.isActive()) copy.cancelCopy();
+		}
+	}
+
+	/*
+	 * Checks one line against the dictionary, recording a new car or owner
+	 * link when it is accepted.
+	 */
+	private boolean accept(byte[] buf, int start, int length){
+		int end = start + length;
+		int vinStart = fieldStart(buf, start, end, _kind.vinField);
+		if(vinStart < 0) {
+			_invalid++;
+			return false;
+		}
+		int vinEnd = fieldEnd(buf, vinStart, end);
+		while(vinStart < vinEnd && buf[vinStart] == ' ') vinStart++;
+		while(vinEnd > vinStart && buf[vinEnd - 1] == ' ') vinEnd--;
+
+		if(_kind == Kind.CAR) {
+			int before = _vins.size();
+			int id = _vins.intern(buf, vinStart, vinEnd - vinStart);
+			if(id == VinDictionary.ABSENT) {
+				_invalid++;
+				return false;
+			}
+			if(id < before) {
+				_duplicate++;
+				return false;
+			}
+			_accepted++;
+			return true;
+		}
+
+		int id = _vins.find(buf, vinStart, vinEnd - vinStart);
+		int customerStart = fieldStart(buf, start, end, 1);
+		int customer = customerStart < 0 ? -1 : parseInt(buf, customerStart, fieldEnd(buf, customerStart, end));
+		if(customer < 0) {
+			_invalid++;
+			return false;
+		}
+		//an unknown customer would fail the foreign key and the whole COPY
+		if(!_customers.get(customer)) {
+			_unknownCustomer++;
+			return false;
+		}
+		if(id == VinDictionary.ABSENT) {
+			_unknown++;
+			return false;
+		}
+		if(_kind == Kind.OWNS) {
+			if(_vins.value(id) == customer + 1) {
+				_duplicate++;
+				return false;
+			}
+			_vins.setValue(id, customer + 1);
+		} else if(Arrays.binarySearch(_owned, 0, _ownedCount, pair(id, customer)) < 0) {
+			_notOwner++;
+			return false;
+		}
+		_accepted++;
+		return true;
+	}
+
+	public String toString(){
+		return _kind.name().toLowerCase() + ": " + _accepted + " accepted, " + _duplicate + " duplicate, " + _unknown + " unknown car, "
+			+ _unknownCustomer + " unknown customer, " + _notOwner + " never owned by the customer, " + _invalid + " invalid\n" + _vins;
+	}
+
+	/*
+	 * Returns where the given field of a line starts, or -1 if the line has
+	 * fewer fields.
+	 */
+	private static int fieldStart(byte[] buf, int start, int end, int field){
+		int at = start;
+		for(int i = 0; i < field; ++i) {
+			at = indexOf(buf, at, end, (byte) ',');
+			if(at < 0) return -1;
+			at++;
+		}
+		return at;
+	}
+
+	private static int fieldEnd(byte[] buf, int start, int end){
+		int comma = indexOf(buf, start, end, (byte) ',');
+		return comma < 0 ? end : comma;
+	}
+
+	private static int indexOf(byte[] buf, int from, int end, byte b){
+		for(int i = from; i < end; ++i) {
+			if(buf[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Parses a non-negative decimal number, or returns -1 if the field is
+	 * not one.
+	 */
+	private static int parseInt(byte[] buf, int start, int end){
+		long value = 0;
+		int digits = 0;
+		for(int i = start; i < end; ++i) {
+			byte b = buf[i];
+			if(b == ' ' || b == '\r' || b == '\n') continue;
+			if(b < '0' || b > '9' || ++digits > 10) return -1;
+			value = value * 10 + (b - '0');
+		}
+		return digits == 0 || value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+
+	/*
+	 * Splits a stream into lines without copying them out of the buffer.
+	 * A line is buf[start, start + length) without its line break, and is
+	 * valid until the next call.
+	 */
+	static class Lines {
+		private final InputStream _in;
+		byte[] buf = new byte[BUFFER_SIZE];
+		int start;
+		int length;
+		private int _pos = 0;
+		private int _limit = 0;
+
+		Lines(InputStream in){
+			this._in = in;
+		}
+
+		boolean next() throws IOException {
+			int scanned = _pos;
+			while(true) {
+				int newline = indexOf(buf, scanned, _limit, (byte) '\n');
+				if(newline >= 0) {
+					return take(newline, newline + 1);
+				}
+				scanned = _limit;
+				if(_pos > 0) {
+					System.arraycopy(buf, _pos, buf, 0, _limit - _pos);
+					scanned -= _pos;
+					_limit -= _pos;
+					_pos = 0;
+				} else if(_limit == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				int n = _in.read(buf, _limit, buf.length - _limit);
+				if(n < 0) {
+					return _limit > _pos && take(_limit, _limit);
+				}
+				_limit += n;
+			}
+		}
+
+		private boolean take(int end, int next){
+			start = _pos;
+			length = end - _pos;
+			if(length > 0 && buf[start + length - 1] == '\r') length--;
+			_pos = next;
+			return true;
+		}
+	}
+
+	/**
+	 * Command line entry point, e.g.
+	 * BulkImport mydb 5432 me service_request history.csv rejected.csv
+	 *
+	 * @param args dbname port user car|owns|service_request file|- [rejected file]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkImport.class.getName () +
+		            " <dbname> <port> <user> <car|owns|service_request> <file|-> [rejected file]");
+			return;
+		}//end if
+		Kind kind = Kind.valueOf(args[3].toUpperCase());
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		String rejectedFile = args.length > 5 ? args[5] : args[4].equals("-") ? "rejected.csv" : args[4] + ".rejected";
+		try (Connection conn = DriverManager.getConnection(url, args[2], "");
+		     InputStream in = args[4].equals("-") ? System.in : new FileInputStream(args[4]);
+		     OutputStream rejected = new BufferedOutputStream(new FileOutputStream(rejectedFile), BUFFER_SIZE)) {
+			long start = System.currentTimeMillis();
+			BulkImport bulk = prepare(conn, kind);
+			long prepared = System.currentTimeMillis();
+			long rows = bulk.run(conn, in, rejected);
+			System.err.println(bulk);
+			System.err.println("Imported " + rows + " row(s) in " + (System.currentTimeMillis() - prepared) + "ms after "
+				+ (prepared - start) + "ms loading cars and owners; rejected rows are in " + rejectedFile);
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
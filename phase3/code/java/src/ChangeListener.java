@@ -0,0 +1,210 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class defines the listener thread that keeps in-process caches
+ * coherent with writes made by other MechanicShop instances. It holds a
+ * dedicated connection that LISTENs on the shop_changes channel filled by the
+ * triggers in notify.sql, collects notifications for a short window and hands
+ * them to the registered handlers as one batch. Each statement sends its
+ * changed rows together; one that changed too many rows to list asks the
+ * handlers to resync instead. Handlers run one at a time, and one that
+ * throws is resynced before it sees further changes, since it may have
+ * missed the ones it failed on. Every handler is resynced once the LISTEN
+ * is in place, on the first connect as well as after the connection is
+ * lost, since changes committed before it sent no notification here.
+ *
+ */
+
+public class ChangeListener {
+	public static final String CHANNEL = "shop_changes";
+
+	/**
+	 * Receiver of batched change notifications. Both methods run on the
+	 * listener thread and may use its connection to fetch changed rows.
+	 */
+	public interface Handler {
+		void onChanges(List<Change> changes, Connection conn) throws SQLException;
+		void onResync(Connection conn) throws SQLException;
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final long _windowMillis;
+	private final List<Handler> _handlers = new CopyOnWriteArrayList<Handler>();
+	//handlers to resync before their next batch, used on the listener thread only
+	private final Set<Handler> _stale = new LinkedHashSet<Handler>();
+	private volatile boolean _running = true;
+	private Thread _thread;
+	private Connection _connection = null;
+
+	public ChangeListener(String url, String user, String passwd) {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._windowMillis = Long.getLong("shop.notify.window.ms", 50L);
+	}
+
+	public void addHandler(Handler handler){
+		_handlers.add(handler);
+	}
+
+	/**
+	 * Method to start the listener thread.
+	 */
+	public void start(){
+		_thread = new Thread(this::listenLoop, "change-listener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	private void listenLoop(){
+		while(_running) {
+			try {
+				PGConnection pg = connect();
+				resyncStale();
+				List<Change> batch = new ArrayList<Change>();
+				PGNotification[] notifications = pg.getNotifications(500);
+				if(notifications == null || notifications.length == 0) continue;
+				boolean overflow = collect(notifications, batch);
+				long deadline = System.currentTimeMillis() + _windowMillis;
+				long remaining;
+				while((remaining = deadline - System.currentTimeMillis()) > 0) {
+					notifications = pg.getNotifications((int) remaining);
+					if(notifications == null || notifications.length == 0) break;
+					overflow |= collect(notifications, batch);
+				}
+				dispatch(batch, overflow);
+			} catch(SQLException e) {
+				if(!_running) break;
+				System.err.println("Change listener reconnecting: " + e.getMessage());
+				closeConnection();
+				try {
+					Thread.sleep(1000);
+				} catch(InterruptedException ie) {
+					break;
+				}
+			}
+		}
+		closeConnection();
+	}
+
+	/*
+	 * Hands a batch to each handler in turn, or asks each to resync when a
+	 * statement changed too many rows to list.
+	 */
+	private void dispatch(List<Change> batch, boolean overflow){
+		for(Handler handler : _handlers) {
+			try {
+				if(overflow || _stale.remove(handler)) {
+					handler.onResync(_connection);
+				} else {
+					handler.onChanges(batch, _connection);
+				}
+			} catch(SQLException | RuntimeException e) {
+				System.err.println("Change handler " + handler.getClass().getName() + " failed, resyncing it: " + e.getMessage());
+				_stale.add(handler);
+			}
+		}
+	}
+
+	private void resyncStale(){
+		if(_stale.isEmpty()) return;
+		for(Handler handler : new ArrayList<Handler>(_stale)) {
+			try {
+				handler.onResync(_connection);
+				_stale.remove(handler);
+			} catch(SQLException | RuntimeException e) {
+				System.err.println("Change handler " + handler.getClass().getName() + " cannot resync: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Adds the changes of each notification to the batch. Returns true when
+	 * one of them stood for too many rows to list.
+	 */
+	private static boolean collect(PGNotification[] notifications, List<Change> batch){
+		boolean overflow = false;
+		for(PGNotification notification : notifications) {
+			overflow |= !Change.parse(notification.getParameter(), batch);
+		}
+		return overflow;
+	}
+
+	private PGConnection connect() throws SQLException {
+		if(_connection == null || _connection.isClosed()) {
+			_connection = DriverManager.getConnection(_url, _user, _passwd);
+			Statement stmt = _connection.createStatement();
+			stmt.execute("LISTEN " + CHANNEL);
+			stmt.close();
+			//caches loaded before the LISTEN may have missed changes
+			_stale.addAll(_handlers);
+		}
+		return _connection.unwrap(PGConnection.class);
+	}
+
+	private void closeConnection(){
+		try {
+			if(_connection != null) {
+				_connection.close();
+			}
+		} catch(SQLException e) {
+			// ignored.
+		}
+		_connection = null;
+	}
+
+	/**
+	 * Method to stop the listener thread and close its connection.
+	 */
+	public void close(){
+		_running = false;
+		try {
+			if(_thread != null) _thread.join(2000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One row change decoded from a table:op:key;key;... notification
+	 * payload; keys are the fields of one row's key.
+	 */
+	public static class Change {
+		public final String table;
+		public final char op;
+		public final String[] keys;
+
+		Change(String table, char op, String[] keys){
+			this.table = table;
+			this.op = op;
+			this.keys = keys;
+		}
+
+		/*
+		 * Adds a change per row of the payload. Returns false when the
+		 * payload is table:op:*, sent for a statement that changed too many
+		 * rows to list.
+		 */
+		static boolean parse(String payload, List<Change> into){
+			String[] parts = payload.split(":", 3);
+			if(parts.length < 3 || parts[1].length() != 1) return true;
+			if(parts[2].equals("*")) return false;
+			for(String row : parts[2].split(";")) {
+				into.add(new Change(parts[0], parts[1].charAt(0), row.split(":")));
+			}
+			return true;
+		}
+	}
+}
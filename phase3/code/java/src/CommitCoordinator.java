@@ -0,0 +1,320 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class defines a group commit coordinator. Writes submitted from any
+ * session are collected for a short window and run in one transaction on the
+ * coordinator's own connection, so a burst of closures costs one commit
+ * instead of one per ticket. Each write runs under its own savepoint and the
+ * caller's future is completed with that write's result or error, including
+ * a RuntimeException thrown by the write, which never reaches the commit
+ * thread.
+ *
+ * Each write names the workload class it belongs to, and a group is only
+ * run once AdmissionControl admits it in every class it holds, so these
+ * writes count against the same limits as the sessions' own statements.
+ *
+ * With trackLsn() on, the primary's WAL position is read after each commit
+ * and kept as lastCommitLsn(), so sessions reading from standbys can wait
+ * for writes that went through the coordinator.
+ *
+ * The window is configured with -Dshop.commit.window.ms (default 5) and the
+ * largest group with -Dshop.commit.batch (default 200). Sessions waiting on
+ * a write give up after -Dshop.commit.wait.ms (default 10000).
+ *
+ */
+
+public class CommitCoordinator {
+	/**
+	 * A unit of work run inside a group transaction. It must not commit or
+	 * roll back the connection it is given.
+	 */
+	public interface Write<T> {
+		T apply(Connection conn) throws SQLException;
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _maxBatch;
+	private final long _windowNanos;
+	private final BlockingQueue<Pending<?>> _queue = new LinkedBlockingQueue<Pending<?>>();
+	private final Thread _worker;
+	//held while queueing and while stopping, so no write is queued after
+	//the commit thread has been told to drain and exit
+	private final Object _submitLock = new Object();
+	private volatile boolean _running = true;
+	private volatile boolean _trackLsn = false;
+	private volatile long _lastCommitLsn = -1;
+	private Connection _connection = null;
+
+	/**
+	 * Creates a coordinator and starts its commit thread.
+	 *
+	 * @param url the JDBC url of the database
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param maxBatch the largest number of writes committed together
+	 * @param windowMillis how long the first write of a group waits for others
+	 */
+	public CommitCoordinator(String url, String user, String passwd, int maxBatch, long windowMillis) {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._maxBatch = Math.max(1, maxBatch);
+		this._windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+		this._worker = new Thread(this::commitLoop, "commit-coordinator");
+		this._worker.setDaemon(true);
+		this._worker.start();
+	}
+
+	/**
+	 * Creates a coordinator configured from the shop.commit system properties.
+	 */
+	public static CommitCoordinator fromProperties(String url, String user, String passwd){
+		return new CommitCoordinator(url, user, passwd,
+			Integer.getInteger("shop.commit.batch", 200),
+			Long.getLong("shop.commit.window.ms", 5L));
+	}
+
+	/**
+	 * Method to queue a write for the next group commit.
+	 *
+	 * @param workload the workload class the write is admitted under
+	 * @param write the work to run inside the group transaction
+	 * @return a future completed once the group holding the write commits,
+	 * or failed with SQLState 53300 when the group was not admitted
+	 */
+	public <T> CompletableFuture<T> submit(WorkloadClass workload, Write<T> write){
+		Pending<T> pending = new Pending<T>(workload, write);
+		synchronized(_submitLock) {
+			if(_running) {
+				_queue.add(pending);
+				return pending.future;
+			}
+		}
+		pending.future.completeExceptionally(new SQLException("Commit coordinator is closed"));
+		return pending.future;
+	}
+
+	/**
+	 * Method to wait for a submitted write, at most waitMillis.
+	 *
+	 * @return the write's result
+	 * @throws java.sql.SQLException when the write failed, or did not commit
+	 * in time; a write that timed out may still commit later
+	 */
+	public static <T> T await(CompletableFuture<T> future, long waitMillis) throws SQLException {
+		try {
+			return future.get(waitMillis, TimeUnit.MILLISECONDS);
+		} catch(ExecutionException e) {
+			throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+		} catch(TimeoutException e) {
+			throw new SQLException("Write not committed within " + waitMillis + "ms");
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a write to commit");
+		}
+	}
+
+	/**
+	 * Method to read the WAL position after every group commit from now on.
+	 */
+	public void trackLsn(){
+		_trackLsn = true;
+	}
+
+	/**
+	 * Method to return the WAL position read after the last group commit,
+	 * which a write's future completing has already passed; -1 when it is
+	 * not tracked.
+	 */
+	public long lastCommitLsn(){
+		return _lastCommitLsn;
+	}
+
+	private void commitLoop(){
+		List<Pending<?>> group = new ArrayList<Pending<?>>();
+		while(_running || !_queue.isEmpty()) {
+			try {
+				Pending<?> first = _queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) continue;
+				group.add(first);
+				long deadline = System.nanoTime() + _windowNanos;
+				while(group.size() < _maxBatch) {
+					long remaining = deadline - System.nanoTime();
+					Pending<?> next = remaining > 0 ? _queue.poll(remaining, TimeUnit.NANOSECONDS) : _queue.poll();
+					if(next == null) break;
+					group.add(next);
+				}
+				commit(group);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(RuntimeException e) {
+				//a failure outside any one write fails the group, not the thread
+				closeConnection();
+				for(Pending<?> pending : group) {
+					pending.future.completeExceptionally(e);
+				}
+			} finally {
+				group.clear();
+			}
+		}
+		closeConnection();
+		//only left over when the thread was interrupted; nothing commits them now
+		Pending<?> pending;
+		while((pending = _queue.poll()) != null) {
+			pending.future.completeExceptionally(new SQLException("Commit coordinator is closed"));
+		}
+	}
+
+	/*
+	 * Admits a group and runs it. The group uses one connection, so it takes
+	 * one slot in each class it holds, acquired in class order.
+	 */
+	private void commit(List<Pending<?>> group){
+		Set<WorkloadClass> classes = EnumSet.noneOf(WorkloadClass.class);
+		for(Pending<?> pending : group) {
+			classes.add(pending.workload);
+		}
+		List<AdmissionControl.Permit> permits = new ArrayList<AdmissionControl.Permit>();
+		try {
+			for(WorkloadClass workload : classes) {
+				permits.add(AdmissionControl.shared().admit(workload));
+			}
+			run(group);
+		} catch(SQLException e) {
+			for(Pending<?> pending : group) {
+				pending.future.completeExceptionally(e);
+			}
+		} finally {
+			for(AdmissionControl.Permit permit : permits) {
+				permit.close();
+			}
+		}
+	}
+
+	/*
+	 * Runs one group. A write that throws is rolled back to its savepoint and
+	 * only its caller sees the error; if the transaction itself cannot be
+	 * committed every caller in the group fails.
+	 */
+	private void run(List<Pending<?>> group){
+		try {
+			Connection conn = connection();
+			for(Pending<?> pending : group) {
+				Savepoint savepoint = conn.setSavepoint();
+				try {
+					pending.run(conn);
+					conn.releaseSavepoint(savepoint);
+				} catch(SQLException | RuntimeException e) {
+					conn.rollback(savepoint);
+					pending.error = e;
+				}
+			}
+			conn.commit();
+		} catch(SQLException e) {
+			try {
+				if(_connection != null) _connection.rollback();
+			} catch(SQLException ignored) {
+				// connection is reopened for the next group
+			}
+			closeConnection();
+			for(Pending<?> pending : group) {
+				pending.future.completeExceptionally(pending.error != null ? pending.error : e);
+			}
+			return;
+		}
+		if(_trackLsn) readLsn();
+		for(Pending<?> pending : group) {
+			pending.complete();
+		}
+	}
+
+	/*
+	 * Reads the WAL position the group's commit is at or behind. The group
+	 * has committed either way, so a failure only costs the position, and
+	 * sessions may read stale standbys until the next group.
+	 */
+	private void readLsn(){
+		try {
+			_lastCommitLsn = Math.max(_lastCommitLsn, ReadRouter.currentLsn(_connection));
+			_connection.commit();
+		} catch(SQLException e) {
+			System.err.println("Commit position not read: " + e.getMessage());
+			closeConnection();
+		}
+	}
+
+	private Connection connection() throws SQLException {
+		if(_connection == null || _connection.isClosed()) {
+			_connection = DriverManager.getConnection(_url, _user, _passwd);
+			_connection.setAutoCommit(false);
+		}
+		return _connection;
+	}
+
+	private void closeConnection(){
+		try {
+			if(_connection != null) {
+				_connection.close();
+			}
+		} catch(SQLException e) {
+			// ignored.
+		}
+		_connection = null;
+	}
+
+	/**
+	 * Method to stop accepting writes. Writes already queued are committed
+	 * before the commit thread exits, waiting at most waitMillis.
+	 */
+	public void close(long waitMillis){
+		synchronized(_submitLock) {
+			_running = false;
+		}
+		try {
+			_worker.join(waitMillis);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static class Pending<T> {
+		final WorkloadClass workload;
+		final Write<T> write;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		T result;
+		Exception error;
+
+		Pending(WorkloadClass workload, Write<T> write){
+			this.workload = workload;
+			this.write = write;
+		}
+
+		void run(Connection conn) throws SQLException {
+			result = write.apply(conn);
+		}
+
+		void complete(){
+			if(error != null) {
+				future.completeExceptionally(error);
+			} else {
+				future.complete(result);
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class defines the customer 360 profile shown at the counter: the
+ * customer, the cars they own, their open service requests, their most
+ * recent closed requests and their lifetime bill. All five queries are sent
+ * as one multi-statement call, which the driver ships in a single round trip,
+ * and the result sets are mapped into typed objects.
+ *
+ */
+
+public class CustomerProfile {
+	static final String PROFILE_QUERY =
+		"SELECT id, fname, lname, phone, address FROM Customer WHERE id = ?;" +
+		"SELECT C.vin, C.make, C.model, C.year FROM Car C, Owns O WHERE O.customer_id = ? AND O.car_vin = C.vin ORDER BY C.vin;" +
+		"SELECT S.rid, S.car_vin, S.date, S.odometer, S.complain FROM Service_Request S WHERE S.customer_id = ? AND NOT EXISTS (SELECT 1 FROM Closed_Request C WHERE C.rid = S.rid) ORDER BY S.rid;" +
+		"SELECT CR.wid, CR.rid, S.car_vin, CR.date, CR.bill, CR.comment FROM Closed_Request CR, Service_Request S WHERE S.customer_id = ? AND CR.rid = S.rid ORDER BY CR.date DESC, CR.wid DESC LIMIT ?;" +
+		"SELECT COALESCE(SUM(CR.bill), 0) FROM Closed_Request CR, Service_Request S WHERE S.customer_id = ? AND CR.rid = S.rid";
+
+	public int id;
+	public String fname;
+	public String lname;
+	public String phone;
+	public String address;
+	public final List<OwnedCar> cars = new ArrayList<OwnedCar>();
+	public final List<OpenRequest> openRequests = new ArrayList<OpenRequest>();
+	public final List<ClosedRequest> recentClosed = new ArrayList<ClosedRequest>();
+	public long lifetimeBill;
+
+	/**
+	 * Method to load a customer's profile in one round trip.
+	 *
+	 * @param conn the connection to read from
+	 * @param customerId the customer's id
+	 * @param recent how many of the latest closed requests to include
+	 * @return the profile, or null if there is no such customer
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static CustomerProfile load(ConnectionPool.Pooled conn, int customerId, int recent) throws SQLException {
+		PreparedStatement stmt = conn.prepare(PROFILE_QUERY);
+		stmt.setInt(1, customerId);
+		stmt.setInt(2, customerId);
+		stmt.setInt(3, customerId);
+		stmt.setInt(4, customerId);
+		stmt.setInt(5, recent);
+		stmt.setInt(6, customerId);
+		stmt.execute();
+
+		ResultSet rs = stmt.getResultSet();
+		if(!rs.next()) return null;
+		CustomerProfile profile = new CustomerProfile();
+		profile.id = rs.getInt(1);
+		profile.fname = trim(rs.getString(2));
+		profile.lname = trim(rs.getString(3));
+		profile.phone = trim(rs.getString(4));
+		profile.address = trim(rs.getString(5));
+
+		rs = next(stmt);
+		while(rs.next()) {
+			profile.cars.add(new OwnedCar(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4)));
+		}
+		rs = next(stmt);
+		while(rs.next()) {
+			profile.openRequests.add(new OpenRequest(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getString(5)));
+		}
+		rs = next(stmt);
+		while(rs.next()) {
+			profile.recentClosed.add(new ClosedRequest(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getString(6)));
+		}
+		rs = next(stmt);
+		if(rs.next()) profile.lifetimeBill = rs.getLong(1);
+		return profile;
+	}
+
+	private static ResultSet next(PreparedStatement stmt) throws SQLException {
+		if(!stmt.getMoreResults()) throw new SQLException("Customer profile query returned too few results");
+		return stmt.getResultSet();
+	}
+
+	private static String trim(String value){
+		return value == null ? null : value.trim();
+	}
+
+	public String toString(){
+		return fname + " " + lname + ", Phone#:" + phone + ", Address:" + address + ", Cars:" + cars.size() + ", Open requests:" + openRequests.size() + ", Lifetime bill:$" + lifetimeBill;
+	}
+
+	public static class OwnedCar {
+		public final String vin;
+		public final String make;
+		public final String model;
+		public final int year;
+
+		OwnedCar(String vin, String make, String model, int year){
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.year = year;
+		}
+
+		public String toString(){
+			return vin + ", " + make + ", " + model + ", " + year;
+		}
+	}
+
+	public static class OpenRequest {
+		public final int rid;
+		public final String vin;
+		public final String date;
+		public final int odometer;
+		public final String complaint;
+
+		OpenRequest(int rid, String vin, String date, int odometer, String complaint){
+			this.rid = rid;
+			this.vin = vin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complaint = complaint;
+		}
+
+		public String toString(){
+			return "RID:" + rid + ", VIN:" + vin + ", " + date + ", " + odometer + ", " + complaint;
+		}
+	}
+
+	public static class ClosedRequest {
+		public final int wid;
+		public final int rid;
+		public final String vin;
+		public final String date;
+		public final int bill;
+		public final String comment;
+
+		ClosedRequest(int wid, int rid, String vin, String date, int bill, String comment){
+			this.wid = wid;
+			this.rid = rid;
+			this.vin = vin;
+			this.date = date;
+			this.bill = bill;
+			this.comment = comment;
+		}
+
+		public String toString(){
+			return "WID:" + wid + ", RID:" + rid + ", VIN:" + vin + ", " + date + ", $" + bill + ", " + comment;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class defines the customer search used at the front desk. Names are
+ * matched by prefix, case-insensitively and with typo tolerance through the
+ * pg_trgm indexes in indexing.sql; input that is mostly digits is matched
+ * against the phone number instead, by substring or, for a mistyped digit,
+ * by trigram similarity. Candidates come back ranked, and the
+ * search gives up once its latency budget (-Dshop.search.budget.ms, default
+ * 300) is spent. A search that ran out of budget fails with SQLState 57014
+ * rather than returning no rows, so callers do not take it for an unknown
+ * customer.
+ *
+ */
+
+public class CustomerSearch {
+	static final String NAME_QUERY =
+		"SELECT id, fname, lname, phone, address, GREATEST(similarity(lower(lname), ?), similarity(lower(fname), ?)) AS score " +
+		"FROM Customer WHERE lower(lname) LIKE ? OR lower(fname) LIKE ? OR lower(lname) % ? OR lower(fname) % ? " +
+		"ORDER BY (lower(lname) LIKE ?) DESC, score DESC, id LIMIT ?";
+	static final String PHONE_QUERY =
+		"SELECT id, fname, lname, phone, address, similarity(regexp_replace(phone, '[^0-9]', '', 'g'), ?) AS score " +
+		"FROM Customer WHERE regexp_replace(phone, '[^0-9]', '', 'g') LIKE ? OR regexp_replace(phone, '[^0-9]', '', 'g') % ? " +
+		"ORDER BY score DESC, id LIMIT ?";
+
+	private static final long BUDGET_MILLIS = Long.getLong("shop.search.budget.ms", 300L);
+
+	/**
+	 * Method to search customers by name or phone number.
+	 *
+	 * @param conn the connection to search on
+	 * @param term the name, name prefix or phone digits typed by the clerk
+	 * @param limit the most candidates to return
+	 * @return matching customers, best first, as (id, fname, lname, phone,
+	 * address, score) records; empty when nothing matched
+	 * @throws java.sql.SQLException when failed to execute the query, with
+	 * SQLState 57014 when the budget ran out
+	 */
+	public static List<List<String>> search(ConnectionPool.Pooled conn, String term, int limit) throws SQLException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		String normalized = term.trim().toLowerCase();
+		if(normalized.isEmpty()) return result;
+		String digits = normalized.replaceAll("[^0-9]", "");
+		boolean byPhone = digits.length() >= 3 && digits.length() * 2 > normalized.length();
+
+		boolean autoCommit = conn.connection.getAutoCommit();
+		conn.connection.setAutoCommit(false);
+		try {
+			Statement setup = conn.createStatement();
+			setup.execute("SET LOCAL statement_timeout = " + BUDGET_MILLIS);
+			setup.close();
+
+			PreparedStatement stmt;
+			if(byPhone) {
+				stmt = conn.prepare(PHONE_QUERY);
+				stmt.setString(1, digits);
+				stmt.setString(2, "%" + digits + "%");
+				stmt.setString(3, digits);
+				stmt.setInt(4, limit);
+			} else {
+				String prefix = escapeLike(normalized) + "%";
+				stmt = conn.prepare(NAME_QUERY);
+				stmt.setString(1, normalized);
+				stmt.setString(2, normalized);
+				stmt.setString(3, prefix);
+				stmt.setString(4, prefix);
+				stmt.setString(5, normalized);
+				stmt.setString(6, normalized);
+				stmt.setString(7, prefix);
+				stmt.setInt(8, limit);
+			}
+			ResultSet rs = stmt.executeQuery();
+			while(rs.next()) {
+				List<String> record = new ArrayList<String>();
+				for(int i = 1; i <= 6; ++i)
+					record.add(rs.getString(i));
+				result.add(record);
+			}
+			rs.close();
+			conn.connection.commit();
+		} catch(SQLException e) {
+			conn.connection.rollback();
+			//57014 is query_canceled, raised when the budget runs out
+			if("57014".equals(e.getSQLState())) {
+				throw new SQLException("Customer search timed out after " + BUDGET_MILLIS + "ms", "57014", e);
+			}
+			throw e;
+		} finally {
+			conn.connection.setAutoCommit(autoCommit);
+		}
+		return result;
+	}
+
+	private static String escapeLike(String term){
+		return term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+}
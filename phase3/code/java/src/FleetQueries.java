@@ -0,0 +1,39 @@
+/**
+ * This class defines the fleet segmentation queries. They read only the
+ * per-customer car counters in Customer_Fleet, which the triggers on Owns
+ * keep current, instead of grouping all of Owns on every call. Both are
+ * prepared statements taking their size as a parameter, so every size a
+ * clerk types shares one plan.
+ *
+ */
+
+public class FleetQueries {
+	//customers without cars have no Customer_Fleet row, so a size of 0 or
+	//less needs the outer join; larger sizes stay on the counters' index
+	static final String AT_LEAST_QUERY = "SELECT C.fname, C.lname, F.car_count FROM Customer_Fleet F, Customer C WHERE F.car_count >= ? AND C.id = F.customer_id ORDER BY F.car_count DESC, C.id";
+	static final String ALL_CUSTOMERS_QUERY = "SELECT C.fname, C.lname, COALESCE(F.car_count, 0) AS car_count FROM Customer C LEFT JOIN Customer_Fleet F ON F.customer_id = C.id WHERE COALESCE(F.car_count, 0) >= ? ORDER BY 3 DESC, C.id";
+	static final String HISTOGRAM_QUERY = "SELECT B.bucket * B.width + 1 AS from_cars, (B.bucket + 1) * B.width AS to_cars, COUNT(*) AS customers "
+		+ "FROM (SELECT (F.car_count - 1) / W.width AS bucket, W.width FROM Customer_Fleet F, (SELECT GREATEST(CAST(? AS INTEGER), 1) AS width) W WHERE F.car_count > 0) B "
+		+ "GROUP BY B.bucket, B.width ORDER BY B.bucket";
+
+	/**
+	 * Method to return the query listing customers who own at least the
+	 * given number of cars, largest fleets first. The query takes the
+	 * number as its one parameter.
+	 *
+	 * @param minCars the smallest fleet size to include; 0 or less lists
+	 * every customer, including those without cars
+	 */
+	public static String customersWithAtLeast(int minCars){
+		return minCars > 0 ? AT_LEAST_QUERY : ALL_CUSTOMERS_QUERY;
+	}
+
+	/**
+	 * Method to return the query counting customers per fleet size. Sizes
+	 * are grouped in buckets of the width given as its one parameter, e.g.
+	 * 1-5, 6-10 for width 5; a width below 1 is taken as 1.
+	 */
+	public static String histogram(){
+		return HISTOGRAM_QUERY;
+	}
+}
@@ -0,0 +1,561 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * This class defines a local append-only journal for the front desk writes.
+ * New service requests and closures are appended and fsynced to the journal
+ * file before the caller returns, and a background drainer replays them to
+ * Postgres in batches through the CommitCoordinator. Every record carries an idempotency key that is stored
+ * in Journal_Applied in the same transaction as the row itself, so a record
+ * replayed after a crash is applied only once. Records are drained in journal
+ * order, which keeps the order of each customer's requests.
+ *
+ * The journal file is locked while it is open, so a second process pointed
+ * at the same file fails to start instead of replaying the same records. A
+ * record the database refuses with a data error is written to the rejected
+ * file and kept for takeRejections(), so the clerk who took the request
+ * hears that it never reached the database.
+ *
+ */
+
+public class IntakeJournal {
+	/**
+	 * Callback for service requests once they have a rid in the database,
+	 * and for closures once they are applied or refused.
+	 */
+	public interface Listener {
+		void serviceRequestApplied(int rid, String customerId, String vin, String date, String odometer, String complaint);
+		void closedRequestSettled(int rid);
+	}
+
+	/**
+	 * A journaled record the database refused.
+	 */
+	public static class Rejection {
+		public final byte kind;
+		public final String key;
+		public final String[] fields;
+		public final String reason;
+
+		Rejection(byte kind, String key, String[] fields, String reason){
+			this.kind = kind;
+			this.key = key;
+			this.fields = fields;
+			this.reason = reason;
+		}
+	}
+
+	public static final byte SERVICE_REQUEST = 1;
+	public static final byte CLOSED_REQUEST = 2;
+
+	static final String INSERT_APPLIED = "INSERT INTO Journal_Applied(idem_key) VALUES (?) ON CONFLICT DO NOTHING";
+	static final String INSERT_SERVICE_REQUEST = "INSERT INTO Service_Request(customer_id, car_vin, date, odometer, complain) VALUES (CAST(? AS INTEGER), ?, CAST(? AS DATE), CAST(? AS INTEGER), ?) RETURNING rid";
+	static final String INSERT_CLOSED_REQUEST = "INSERT INTO Closed_Request(rid, mid, date, comment, bill) VALUES (CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS DATE), ?, CAST(? AS INTEGER)) ON CONFLICT (rid) DO NOTHING";
+
+	//record header is the payload length followed by its CRC32
+	private static final int HEADER_SIZE = 8;
+	private static final int BATCH_SIZE = Integer.getInteger("shop.journal.batch", 100);
+	private static final long RETRY_MILLIS = Long.getLong("shop.journal.retry.ms", 1000L);
+
+	private final File _posFile;
+	private final File _rejectFile;
+	//journals open in this JVM; a second channel on a locked file would
+	//drop the lock when it is closed, so the file is never opened twice
+	private static final Set<String> OPEN_FILES = new HashSet<String>();
+
+	private final String _path;
+	private final FileChannel _channel;
+	private final FileLock _lock;
+	private final CommitCoordinator _coordinator;
+
+	//guards appends and truncation of the journal file
+	private final Object _writeLock = new Object();
+	//guards fsync so concurrent appenders share one force() call
+	private final Object _forceLock = new Object();
+	private volatile long _forcedOffset;
+	private long _appliedOffset;
+	//records appended and applied since the journal was opened, counting
+	//those left from a previous run as appended, and the WAL position of
+	//the commit that applied the last of them
+	private long _appended;
+	private volatile long _applied = 0;
+	private volatile long _appliedLsn = -1;
+	private volatile boolean _running = true;
+	private Thread _drainer;
+	private volatile Listener _listener = null;
+	private final ConcurrentLinkedQueue<Rejection> _rejections = new ConcurrentLinkedQueue<Rejection>();
+
+	/**
+	 * Creates a journal backed by the given file. Records left over from a
+	 * previous run are replayed once the drainer is started.
+	 *
+	 * @param file the journal file
+	 * @param coordinator the group commit coordinator records are applied through
+	 * @throws java.io.IOException when the journal cannot be opened or
+	 * another process holds it
+	 */
+	public IntakeJournal(File file, CommitCoordinator coordinator) throws IOException {
+		this._posFile = new File(file.getPath() + ".pos");
+		this._rejectFile = new File(file.getPath() + ".rejected");
+		this._coordinator = coordinator;
+		this._path = file.getCanonicalPath();
+		synchronized(OPEN_FILES) {
+			if(!OPEN_FILES.add(this._path)) throw new IOException("Journal " + file + " is already open");
+		}
+		FileLock lock = null;
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			lock = channel.tryLock();
+		} catch(IOException | OverlappingFileLockException e) {
+			// reported below
+		}
+		if(lock == null) {
+			if(channel != null) channel.close();
+			synchronized(OPEN_FILES) {
+				OPEN_FILES.remove(this._path);
+			}
+			throw new IOException("Journal " + file + " is in use by another process");
+		}
+		this._channel = channel;
+		this._lock = lock;
+		this._forcedOffset = validLength();
+		this._channel.truncate(this._forcedOffset);
+		this._appliedOffset = Math.min(readPos(), this._forcedOffset);
+		this._appended = countRecords(this._appliedOffset, this._forcedOffset);
+	}
+
+	/**
+	 * Method to start the background drainer thread.
+	 */
+	public void start(){
+		_drainer = new Thread(this::drainLoop, "intake-journal-drainer");
+		_drainer.setDaemon(true);
+		_drainer.start();
+	}
+
+	/**
+	 * Method to register the callback told about applied service requests.
+	 */
+	public void setListener(Listener listener){
+		this._listener = listener;
+	}
+
+	/**
+	 * Method to return the rids of the closures journaled but not yet
+	 * applied, so they can be kept off the board until they are settled.
+	 */
+	public Set<Integer> pendingClosures() throws IOException {
+		Set<Integer> rids = new HashSet<Integer>();
+		long offset;
+		long limit;
+		synchronized(_writeLock) {
+			offset = _appliedOffset;
+			limit = _forcedOffset;
+		}
+		Record record;
+		while((record = readRecord(offset, limit)) != null) {
+			if(record.kind == CLOSED_REQUEST) {
+				rids.add(Integer.parseInt(record.fields[0]));
+			}
+			offset = record.end;
+		}
+		return rids;
+	}
+
+	/**
+	 * Method to return the number of records appended so far; every record
+	 * a caller has appended is at or below it.
+	 */
+	public long appended(){
+		synchronized(_writeLock) {
+			return _appended;
+		}
+	}
+
+	/**
+	 * Method to return the WAL position at which the records up to the
+	 * given count are all in the database, or -1 while some are still
+	 * pending or the coordinator does not track positions.
+	 */
+	public long appliedLsn(long count){
+		return _applied >= count ? _appliedLsn : -1;
+	}
+
+	/**
+	 * Method to return the records refused by the database since the last
+	 * call, oldest first.
+	 */
+	public List<Rejection> takeRejections(){
+		List<Rejection> rejections = new ArrayList<Rejection>();
+		Rejection rejection;
+		while((rejection = _rejections.poll()) != null) {
+			rejections.add(rejection);
+		}
+		return rejections;
+	}
+
+	/**
+	 * Method to append a new service request to the journal.
+	 *
+	 * @return the idempotency key of the journaled record
+	 * @throws java.io.IOException when the record could not be made durable
+	 */
+	public String appendServiceRequest(String customerId, String vin, String date, int odometer, String complaint) throws IOException {
+		return append(SERVICE_REQUEST, customerId, vin, date, Integer.toString(odometer), complaint);
+	}
+
+	/**
+	 * Method to append the closure of a service request to the journal.
+	 *
+	 * @return the idempotency key of the journaled record
+	 * @throws java.io.IOException when the record could not be made durable
+	 */
+	public String appendClosedRequest(String rid, int mechId, String date, String comment, int bill) throws IOException {
+		return append(CLOSED_REQUEST, rid, Integer.toString(mechId), date, comment, Integer.toString(bill));
+	}
+
+	/**
+	 * Method to return the number of journal bytes not yet applied to the
+	 * database.
+	 */
+	public long pendingBytes(){
+		synchronized(_writeLock){
+			return _forcedOffset - _appliedOffset;
+		}
+	}
+
+	private String append(byte kind, String... fields) throws IOException {
+		String key = UUID.randomUUID().toString();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(kind);
+		out.writeUTF(key);
+		out.writeShort(fields.length);
+		for(String field : fields) {
+			out.writeUTF(field == null ? "" : field);
+		}
+		out.flush();
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		record.flip();
+
+		long end;
+		synchronized(_writeLock) {
+			long position = _channel.size();
+			while(record.hasRemaining()) {
+				position += _channel.write(record, position);
+			}
+			end = position;
+			_appended++;
+		}
+		force(end);
+		synchronized(this) {
+			notifyAll();
+		}
+		return key;
+	}
+
+	/*
+	 * Forces the journal to disk up to at least the given offset. Appenders
+	 * that arrive while another thread is forcing wait for it and are usually
+	 * covered by that same fsync.
+	 */
+	private void force(long end) throws IOException {
+		if(_forcedOffset >= end) return;
+		synchronized(_forceLock) {
+			if(_forcedOffset >= end) return;
+			long target = _channel.size();
+			_channel.force(false);
+			_forcedOffset = target;
+		}
+	}
+
+	private void drainLoop(){
+		while(_running || pendingBytes() > 0) {
+			try {
+				List<Record> batch = readBatch();
+				if(batch.isEmpty()) {
+					synchronized(this) {
+						if(_running && pendingBytes() == 0) {
+							wait(RETRY_MILLIS);
+						}
+					}
+					continue;
+				}
+				apply(batch);
+				_appliedLsn = _coordinator.lastCommitLsn();
+				advance(batch.get(batch.size() - 1).end);
+				_applied += batch.size();
+			} catch(Exception e) {
+				System.err.println("Journal drain delayed: " + e.getMessage());
+				if(!_running) return;
+				sleep();
+			}
+		}
+	}
+
+	private List<Record> readBatch() throws IOException {
+		List<Record> batch = new ArrayList<Record>();
+		long offset;
+		long limit;
+		synchronized(_writeLock) {
+			offset = _appliedOffset;
+			limit = _forcedOffset;
+		}
+		while(offset < limit && batch.size() < BATCH_SIZE) {
+			Record record = readRecord(offset, limit);
+			if(record == null) break;
+			batch.add(record);
+			offset = record.end;
+		}
+		return batch;
+	}
+
+	/*
+	 * Applies a batch through the commit coordinator. A record that fails
+	 * with a data error is moved to the rejected file so one bad ticket
+	 * cannot stall the queue; any other failure aborts the batch and it is
+	 * retried, with records that did commit skipped by their keys. A closure
+	 * of a request closed already is refused the same way.
+	 */
+	private void apply(List<Record> batch) throws SQLException, IOException {
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for(Record record : batch) {
+			WorkloadClass workload = record.kind == SERVICE_REQUEST ? WorkloadClass.INTAKE : WorkloadClass.CLOSURE;
+			results.add(_coordinator.submit(workload, conn -> applyRecord(conn, record)));
+		}
+		SQLException failure = null;
+		for(int i = 0; i < batch.size(); i++) {
+			try {
+				int rid = results.get(i).join();
+				Record record = batch.get(i);
+				if(record.kind == SERVICE_REQUEST) {
+					if(rid > 0 && _listener != null) {
+						_listener.serviceRequestApplied(rid, record.fields[0], record.fields[1], record.fields[2], record.fields[3], record.fields[4]);
+					}
+				} else {
+					settle(record);
+					if(rid == 0) {
+						System.err.println("Journal record " + record.key + " rejected: request " + record.fields[0] + " is already closed");
+						reject(record, "Service request " + record.fields[0] + " is already closed");
+					}
+				}
+			} catch(CompletionException e) {
+				SQLException cause = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+				if(isDataError(cause)) {
+					System.err.println("Journal record " + batch.get(i).key + " rejected: " + cause.getMessage());
+					if(batch.get(i).kind == CLOSED_REQUEST) settle(batch.get(i));
+					reject(batch.get(i), cause.getMessage());
+				} else if(failure == null) {
+					failure = cause;
+				}
+			}
+		}
+		if(failure != null) throw failure;
+	}
+
+	private void settle(Record record){
+		if(_listener != null) {
+			_listener.closedRequestSettled(Integer.parseInt(record.fields[0]));
+		}
+	}
+
+	/*
+	 * Returns the new rid for a service request, the row count for a
+	 * closure (0 when the request was closed already), or -1 when the
+	 * record was already applied.
+	 */
+	private static int applyRecord(Connection conn, Record record) throws SQLException {
+		try (PreparedStatement applied = conn.prepareStatement(INSERT_APPLIED)) {
+			applied.setString(1, record.key);
+			if(applied.executeUpdate() == 0) {
+				return -1; //already applied before a crash
+			}
+		}
+		try (PreparedStatement stmt = conn.prepareStatement(record.kind == SERVICE_REQUEST ? INSERT_SERVICE_REQUEST : INSERT_CLOSED_REQUEST)) {
+			for(int i = 0; i < record.fields.length; i++) {
+				stmt.setString(i + 1, record.fields[i]);
+			}
+			if(record.kind != SERVICE_REQUEST) {
+				return stmt.executeUpdate();
+			}
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	private static boolean isDataError(SQLException e){
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("22") || state.startsWith("23"));
+	}
+
+	/*
+	 * Records the drained position, and truncates the journal once every
+	 * record in it has been applied.
+	 */
+	private void advance(long offset) throws IOException {
+		synchronized(_writeLock) {
+			_appliedOffset = offset;
+			if(_appliedOffset == _forcedOffset && _channel.size() == _forcedOffset) {
+				_channel.truncate(0);
+				_channel.force(true);
+				_appliedOffset = 0;
+				_forcedOffset = 0;
+			}
+			writePos(_appliedOffset);
+		}
+	}
+
+	private Record readRecord(long offset, long limit) throws IOException {
+		if(limit - offset < HEADER_SIZE) return null;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, offset);
+		int length = header.getInt(0);
+		int checksum = header.getInt(4);
+		if(length < 0 || offset + HEADER_SIZE + length > limit) return null;
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(payload, offset + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		if((int) crc.getValue() != checksum) return null;
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+		Record record = new Record();
+		record.kind = in.readByte();
+		record.key = in.readUTF();
+		record.fields = new String[in.readShort()];
+		for(int i = 0; i < record.fields.length; i++) {
+			record.fields[i] = in.readUTF();
+		}
+		record.end = offset + HEADER_SIZE + length;
+		return record;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = _channel.read(buffer, position + buffer.position());
+			if(read < 0) throw new IOException("Unexpected end of journal");
+		}
+	}
+
+	private long countRecords(long offset, long limit) throws IOException {
+		long count = 0;
+		Record record;
+		while((record = readRecord(offset, limit)) != null) {
+			offset = record.end;
+			count++;
+		}
+		return count;
+	}
+
+	/*
+	 * Returns the length of the journal up to the last complete record. A
+	 * torn write at the tail from a crash is discarded.
+	 */
+	private long validLength() throws IOException {
+		long size = _channel.size();
+		long offset = 0;
+		Record record;
+		while((record = readRecord(offset, size)) != null) {
+			offset = record.end;
+		}
+		return offset;
+	}
+
+	private long readPos(){
+		try {
+			if(!_posFile.exists()) return 0;
+			return Long.parseLong(new String(Files.readAllBytes(_posFile.toPath()), StandardCharsets.UTF_8).trim());
+		} catch(Exception e) {
+			return 0; //replaying from the start is safe with idempotency keys
+		}
+	}
+
+	private void writePos(long offset) throws IOException {
+		File tmp = new File(_posFile.getPath() + ".tmp");
+		Files.write(tmp.toPath(), Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), _posFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void reject(Record record, String reason) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(_rejectFile, true))) {
+			out.println(record.kind + "\t" + record.key + "\t" + String.join("\t", record.fields));
+		}
+		_rejections.add(new Rejection(record.kind, record.key, record.fields, reason));
+	}
+
+	private void sleep(){
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Method to stop the drainer. Records still pending are given up to
+	 * waitMillis to reach the database; anything left stays in the journal
+	 * and is replayed on the next start.
+	 */
+	public void close(long waitMillis){
+		_running = false;
+		synchronized(this) {
+			notifyAll();
+		}
+		try {
+			if(_drainer != null) {
+				_drainer.join(waitMillis);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			//closing the channel releases the lock
+			_channel.close();
+		} catch(IOException e) {
+			// ignored.
+		}
+		synchronized(OPEN_FILES) {
+			OPEN_FILES.remove(_path);
+		}
+	}
+
+	static class Record {
+		byte kind;
+		String key;
+		String[] fields;
+		long end;
+	}
+}
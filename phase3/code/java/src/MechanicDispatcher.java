@@ -0,0 +1,341 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the dispatcher that hands open service requests to
+ * mechanics. Unclaimed tickets from the TicketBoard wait in a priority queue
+ * ordered by age, with safety complaints moved ahead by a fixed boost, and
+ * each is given to the least loaded mechanic with enough experience for its
+ * complaint category. Assignments are claims on the board, so the ticket
+ * shows up in that mechanic's CloseServiceRequest list, and each round's
+ * assignments are written to the Assignment table in one grouped write.
+ * An assignment another instance saved first is kept: the row is not
+ * overwritten, and the ticket's claim on this board moves to that mechanic.
+ *
+ */
+
+public class MechanicDispatcher {
+	static final String MECHANICS_QUERY = "SELECT id, experience FROM Mechanic";
+	static final String OPEN_ASSIGNMENTS_QUERY = "SELECT A.rid, A.mid FROM Assignment A WHERE NOT EXISTS (SELECT 1 FROM Closed_Request C WHERE C.rid = A.rid)";
+	static final String INSERT_ASSIGNMENT = "INSERT INTO Assignment(rid, mid, assigned_at) VALUES (?, ?, now()) ON CONFLICT (rid) DO NOTHING";
+	static final String ASSIGNED_MECHANIC_QUERY = "SELECT mid FROM Assignment WHERE rid = ?";
+
+	/**
+	 * Complaint categories, most urgent first. The boost moves a ticket ahead
+	 * of older tickets by that many minutes of age.
+	 */
+	public enum Category {
+		SAFETY(240, 5, "brake", "steer", "wheel", "tire", "airbag", "smoke", "fire"),
+		DRIVETRAIN(60, 2, "engine", "transmission", "gas", "oil", "clutch", "stall", "overheat"),
+		ELECTRICAL(30, 1, "battery", "light", "electric", "radio", "start"),
+		GENERAL(0, 0);
+
+		final long boostMillis;
+		final int minExperience;
+		final String[] keywords;
+
+		Category(int boostMinutes, int minExperience, String... keywords){
+			this.boostMillis = boostMinutes * 60000L;
+			this.minExperience = minExperience;
+			this.keywords = keywords;
+		}
+
+		static Category of(String complaint){
+			String text = complaint == null ? "" : complaint.toLowerCase();
+			for(Category category : values()) {
+				for(String keyword : category.keywords) {
+					if(text.contains(keyword)) return category;
+				}
+			}
+			return GENERAL;
+		}
+	}
+
+	private final TicketBoard _board;
+	private final CommitCoordinator _coordinator;
+	private final int _capacity;
+	private final PriorityBlockingQueue<Queued> _queue = new PriorityBlockingQueue<Queued>(64, (a, b) -> Long.compare(a.key, b.key));
+	private final Set<Integer> _queued = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<Integer, Mechanic> _mechanics = new ConcurrentHashMap<Integer, Mechanic>();
+	private final Map<Category, CategoryStats> _stats = new ConcurrentHashMap<Category, CategoryStats>();
+	private ScheduledExecutorService _scheduler = null;
+
+	/**
+	 * Creates a dispatcher. Each mechanic holds at most
+	 * -Dshop.dispatch.capacity (default 2) tickets at once.
+	 */
+	public MechanicDispatcher(TicketBoard board, CommitCoordinator coordinator){
+		this._board = board;
+		this._coordinator = coordinator;
+		this._capacity = Integer.getInteger("shop.dispatch.capacity", 2);
+		for(Category category : Category.values()) {
+			_stats.put(category, new CategoryStats());
+		}
+	}
+
+	/**
+	 * Method to (re)load the mechanics and their experience.
+	 *
+	 * @param conn the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void loadMechanics(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery(MECHANICS_QUERY);
+		while(rs.next()) {
+			_mechanics.computeIfAbsent(rs.getInt(1), id -> new Mechanic(id)).experience = rs.getInt(2);
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Method to load the mechanics and put assignments saved by an earlier
+	 * run back on the board as claims.
+	 *
+	 * @param conn the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void restore(Connection conn) throws SQLException {
+		loadMechanics(conn);
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery(OPEN_ASSIGNMENTS_QUERY);
+		while(rs.next()) {
+			_board.claim(rs.getInt(1), rs.getInt(2));
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Method to run dispatch rounds in the background every
+	 * -Dshop.dispatch.interval.s seconds. Does nothing when the interval is
+	 * 0, the default, leaving dispatch to the menu.
+	 */
+	public void start(){
+		int interval = Integer.getInteger("shop.dispatch.interval.s", 0);
+		if(interval <= 0) return;
+		_scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mechanic-dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		_scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				dispatch();
+			} catch(RuntimeException e) {
+				System.err.println("Dispatch failed: " + e.getMessage());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to stop the background dispatch rounds.
+	 */
+	public void close(){
+		if(_scheduler != null) _scheduler.shutdownNow();
+	}
+
+	/**
+	 * Method to run one dispatch round: queue newly opened tickets, then
+	 * assign from the head of the queue until it is empty or every eligible
+	 * mechanic is at capacity.
+	 *
+	 * @return the number of tickets assigned
+	 */
+	public synchronized int dispatch(){
+		long now = System.currentTimeMillis();
+		for(TicketBoard.Ticket ticket : _board.unclaimed()) {
+			if(_queued.add(ticket.rid)) {
+				Category category = Category.of(ticket.complaint);
+				long opened = openedAt(ticket.date, now);
+				_queue.add(new Queued(ticket.rid, category, opened, opened - category.boostMillis));
+			}
+		}
+		//load is the number of open tickets each mechanic currently holds
+		Map<Integer, Integer> held = _board.claimedCounts();
+		for(Mechanic mechanic : _mechanics.values()) {
+			Integer count = held.get(mechanic.id);
+			mechanic.load.set(count == null ? 0 : count);
+		}
+
+		List<int[]> assignments = new ArrayList<int[]>();
+		Queued next;
+		while((next = _queue.poll()) != null) {
+			TicketBoard.Ticket ticket = _board.get(next.rid);
+			if(ticket == null || ticket.claimedBy() != TicketBoard.UNCLAIMED) {
+				_queued.remove(next.rid); //closed or picked by hand meanwhile
+				continue;
+			}
+			Mechanic mechanic = pick(next.category);
+			if(mechanic == null) {
+				//every mechanic is at capacity
+				_queue.add(next);
+				break;
+			}
+			if(!_board.claim(next.rid, mechanic.id)) {
+				_queued.remove(next.rid);
+				continue;
+			}
+			mechanic.load.incrementAndGet();
+			_queued.remove(next.rid);
+			_stats.get(next.category).record(now - next.openedAt);
+			assignments.add(new int[]{ next.rid, mechanic.id });
+		}
+		persist(assignments);
+		return assignments.size();
+	}
+
+	/*
+	 * Returns the least loaded mechanic below capacity with enough
+	 * experience for the category, breaking ties by more experience. If
+	 * nobody qualifies on experience, any mechanic below capacity will do.
+	 */
+	private Mechanic pick(Category category){
+		Mechanic best = null;
+		Mechanic fallback = null;
+		for(Mechanic mechanic : _mechanics.values()) {
+			if(mechanic.load.get() >= _capacity) continue;
+			if(better(mechanic, fallback)) fallback = mechanic;
+			if(mechanic.experience >= category.minExperience && better(mechanic, best)) best = mechanic;
+		}
+		return best != null ? best : fallback;
+	}
+
+	private static boolean better(Mechanic candidate, Mechanic current){
+		if(current == null) return true;
+		int byLoad = Integer.compare(candidate.load.get(), current.load.get());
+		if(byLoad != 0) return byLoad < 0;
+		return candidate.experience > current.experience;
+	}
+
+	/*
+	 * Writes the round's assignments as one batch through the commit
+	 * coordinator. The claims on the board already took effect, so a failed
+	 * write is only reported. A row that was not inserted belongs to another
+	 * instance's dispatcher; its mechanic is read back in the same write and
+	 * the claim here is moved to it.
+	 */
+	private void persist(List<int[]> assignments){
+		if(assignments.isEmpty()) return;
+		_coordinator.submit(WorkloadClass.CLOSURE, conn -> {
+			PreparedStatement stmt = conn.prepareStatement(INSERT_ASSIGNMENT);
+			for(int[] assignment : assignments) {
+				stmt.setInt(1, assignment[0]);
+				stmt.setInt(2, assignment[1]);
+				stmt.addBatch();
+			}
+			int[] counts = stmt.executeBatch();
+			stmt.close();
+			//rid, this dispatcher's mechanic and the saved one for each lost row
+			List<int[]> lost = new ArrayList<int[]>();
+			PreparedStatement saved = conn.prepareStatement(ASSIGNED_MECHANIC_QUERY);
+			for(int i = 0; i < counts.length; ++i) {
+				if(counts[i] != 0) continue;
+				int[] assignment = assignments.get(i);
+				saved.setInt(1, assignment[0]);
+				ResultSet rs = saved.executeQuery();
+				lost.add(new int[]{ assignment[0], assignment[1], rs.next() ? rs.getInt(1) : TicketBoard.UNCLAIMED });
+				rs.close();
+			}
+			saved.close();
+			return lost;
+		}).whenComplete((lost, error) -> {
+			if(error != null) {
+				System.err.println("Could not save assignments: " + error.getMessage());
+				return;
+			}
+			for(int[] row : lost) {
+				_board.release(row[0], row[1]);
+				if(row[2] != TicketBoard.UNCLAIMED) _board.claim(row[0], row[2]);
+			}
+			if(!lost.isEmpty()) System.err.println(lost.size() + " ticket(s) were already assigned by another dispatcher");
+		});
+	}
+
+	private static long openedAt(String date, long fallback){
+		if(date == null) return fallback;
+		try {
+			return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch(Exception e) {
+			// not an ISO date, try the format the front desk writes
+		}
+		try {
+			return LocalDateTime.parse(date, DateTimeFormatter.ofPattern("M/d/yyyy HH:mm")).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch(Exception e) {
+			return fallback;
+		}
+	}
+
+	/**
+	 * Method to print the queue depth and the wait from opening to
+	 * assignment for each complaint category.
+	 */
+	public void printStatistics(){
+		Map<Category, Integer> depth = new ConcurrentHashMap<Category, Integer>();
+		for(Queued queued : _queue) {
+			depth.merge(queued.category, 1, Integer::sum);
+		}
+		System.out.println("category\tqueued\tassigned\tavg wait ms\tmax wait ms");
+		for(Category category : Category.values()) {
+			CategoryStats stats = _stats.get(category);
+			long assigned = stats.assigned.get();
+			System.out.println(category + "\t" + depth.getOrDefault(category, 0) + "\t" + assigned + "\t"
+				+ (assigned == 0 ? 0 : stats.waitMillis.get() / assigned) + "\t" + stats.maxWaitMillis.get());
+		}
+	}
+
+	static class Queued {
+		final int rid;
+		final Category category;
+		//when the request was opened, or queued if its date cannot be read
+		final long openedAt;
+		//smaller keys are served first
+		final long key;
+
+		Queued(int rid, Category category, long openedAt, long key){
+			this.rid = rid;
+			this.category = category;
+			this.openedAt = openedAt;
+			this.key = key;
+		}
+	}
+
+	static class Mechanic {
+		final int id;
+		volatile int experience;
+		final AtomicInteger load = new AtomicInteger();
+
+		Mechanic(int id){
+			this.id = id;
+		}
+	}
+
+	static class CategoryStats {
+		final AtomicLong assigned = new AtomicLong();
+		final AtomicLong waitMillis = new AtomicLong();
+		final AtomicLong maxWaitMillis = new AtomicLong();
+
+		void record(long wait){
+			assigned.incrementAndGet();
+			waitMillis.addAndGet(wait);
+			maxWaitMillis.accumulateAndGet(wait, Math::max);
+		}
+	}
+}
@@ -11,18 +11,24 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.sql.Types;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 
@@ -33,9 +39,38 @@ import java.time.LocalDateTime;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//connections to the primary, shared by every session in this process
+	private static ConnectionPool _pool = null;
+	//group commit coordinator and intake journal shared by every session in this process
+	private static CommitCoordinator _coordinator = null;
+	private static IntakeJournal _journal = null;
+	private static TicketBoard _board = null;
+	private static ChangeListener _listener = null;
+	private static MechanicDispatcher _dispatcher = null;
+	private static ReadRouter _router = null;
+	private static ShopSnapshot _snapshot = null;
+	private static int _sessions = 0;
+	//operation being run, whose deadline and workload class apply to the
+	//statements this session runs through its runners
+	private Operation _operation = Operation.OTHER;
+	private SqlRunner _runner = null;
+	//this session's runners over the standby pools, created on first use,
+	//and the WAL position of its last write, which a standby must reach to
+	//serve it
+	private SqlRunner[] _standbyRunners = new SqlRunner[0];
+	private long _writeLsn = -1;
+	//count of journal records that must be applied before this session's
+	//reads may leave the primary, 0 when none is pending
+	private long _journalWrites = 0;
+	//statements refused admission and writes failed outside the runners
+	private long _failures = 0;
+	//connection running this session's export, whose COPY is not a
+	//Statement the runners can cancel
+	private volatile Connection _copying = null;
+	//set once cleanup() has run, from main or from the shutdown hook
+	private boolean _closed = false;
+	//console input, recorded with -Dshop.record and replaced per thread by WorkloadReplay
+	static BufferedReader in = new SessionInput(new InputStreamReader(System.in));
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -44,9 +79,11 @@ public class MechanicShop{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+			// open the shared pool, replay anything left in the intake
+			// journal and keep draining it
+			openShared(url, dbname, user, passwd);
+			this._runner = new SqlRunner(_pool);
+			System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
@@ -58,154 +95,623 @@ public class MechanicShop{
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? for each parameter
+	 * @param params the parameter values
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public void executeUpdate (String sql, Object... params) throws SQLException { 
+		executeUpdate(sql, this._operation.workload, params);
+	}//end executeUpdate
 
-		// close the instruction
-	    stmt.close ();
+	/**
+	 * Method to execute an update SQL statement once it is admitted under
+	 * the given workload class.
+	 * 
+	 * @param sql the input SQL string, with ? for each parameter
+	 * @param workload the workload class the statement runs under
+	 * @param params the parameter values
+	 * @throws java.sql.SQLException when update failed or was not admitted
+	 * */
+	public void executeUpdate (String sql, WorkloadClass workload, Object... params) throws SQLException { 
+		try (AdmissionControl.Permit permit = admit(workload)) {
+			// issues the update instruction on a pooled connection
+			timed(this._runner, permit).update(sql, params);
+		}
+		noteWrite();
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an INSERT ... RETURNING id statement and return the
+	 * id given to the new row, read from the same statement rather than
+	 * from currval, which only holds on the connection that ran the insert.
+	 * 
+	 * @param sql the INSERT statement ending in RETURNING id, with ? for each parameter
+	 * @param params the parameter values
+	 * @return the new row's id
+	 * @throws java.sql.SQLException when the insert failed or was not admitted
+	 */
+	public int executeInsertAndReturnId (String sql, Object... params) throws SQLException {
+		WorkloadClass workload = this._operation.workload;
+		int id;
+		try (AdmissionControl.Permit permit = admit(workload)) {
+			id = Integer.parseInt(timed(this._runner, permit).list(sql, params).get(0).get(0));
+		}
+		noteWrite();
+		return id;
+	}
+
+	/**
+	 * Method to set the operation whose deadline and workload class apply to
+	 * the statements that follow.
+	 * 
+	 * @param operation the operation being run
+	 */
+	public void setOperation(Operation operation){
+		this._operation = operation;
+	}
+
+	/**
+	 * Method to cancel the statement this session is running, if any. It is
+	 * safe to call from another thread, e.g. a shutdown hook or a server
+	 * thread whose client went away.
+	 * 
+	 * @return true if a running statement was sent a cancel request
+	 */
+	public boolean cancel(){
+		boolean cancelled = this._runner != null && this._runner.cancel();
+		for(SqlRunner standby : this._standbyRunners) {
+			if(standby != null && standby.cancel()) cancelled = true;
+		}
+		Connection copying = this._copying;
+		if(copying != null) {
+			try {
+				copying.unwrap(org.postgresql.core.BaseConnection.class).cancelQuery();
+				cancelled = true;
+			} catch(SQLException e) {
+				// the export finished or its connection is gone
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Method to have the server parse and plan a statement without running
+	 * it, which loads the catalog entries it needs into a pooled backend.
+	 * Parameters are planned as nulls of unknown type.
+	 * 
+	 * @param sql the statement to plan, with ? for each parameter
+	 * @throws java.sql.SQLException when the statement is invalid
+	 */
+	public void explain(String sql) throws SQLException {
+		timed(this._runner, this._operation.workload).call("EXPLAIN " + sql, (conn, timer) -> {
+			PreparedStatement stmt = conn.connection.prepareStatement("EXPLAIN " + sql);
+			try {
+				long parameters = sql.chars().filter(c -> c == '?').count();
+				for(int i = 1; i <= parameters; ++i) {
+					stmt.setNull(i, Types.OTHER);
+				}
+				stmt.execute();
+				timer.rows(0);
+				return null;
+			} finally {
+				stmt.close();
+			}
+		});
+	}
+
+	/**
+	 * Method to record that this session has just committed a write, so its
+	 * following reads only go to standbys that have replayed it.
+	 * 
+	 * @throws java.sql.SQLException when the primary's position cannot be read
+	 */
+	public void noteWrite() throws SQLException {
+		if(_router != null) {
+			noteWrite(ReadRouter.parseLsn(this._runner.list(ReadRouter.PRIMARY_LSN_QUERY).get(0).get(0)));
+		}
+	}
+
+	/**
+	 * Method to record a write committed elsewhere at the given WAL
+	 * position, e.g. by the commit coordinator.
+	 */
+	public void noteWrite(long lsn){
+		this._writeLsn = Math.max(this._writeLsn, lsn);
+	}
+
+	/**
+	 * Method to record that this session has just appended to the intake
+	 * journal. Its reads stay on the primary until the drainer has applied
+	 * the record, and then need the WAL position of that commit.
+	 */
+	public void noteJournalWrite(){
+		if(_router != null) {
+			this._journalWrites = _journal.appended();
+		}
+	}
+
+	/*
+	 * A read-only step of the current operation, run through whichever
+	 * runner the router picks.
+	 */
+	private interface Read<T> {
+		T run(SqlRunner runner) throws SQLException;
+	}
+
+	/*
+	 * Runs a read on a standby when one is within the operation's staleness
+	 * bound and has this session's last write, and on the primary otherwise.
+	 * A standby that cannot be reached is dropped and the read retried on
+	 * the primary; the pool discards the failed connection. The permit is
+	 * the read's admission, whose workload class timeout applies.
+	 */
+	private <T> T read(AdmissionControl.Permit permit, Read<T> read) throws SQLException {
+		return read(permit, Math.min(this._operation.deadlineSeconds, permit.workload().timeoutSeconds), read);
+	}
+
+	/*
+	 * Runs a read as above, limited to the given number of seconds instead.
+	 */
+	private <T> T read(AdmissionControl.Permit permit, int timeoutSeconds, Read<T> read) throws SQLException {
+		if(this._journalWrites > 0) {
+			long lsn = _journal.appliedLsn(this._journalWrites);
+			if(lsn < 0) return read.run(timed(this._runner, timeoutSeconds));
+			noteWrite(lsn);
+			this._journalWrites = 0;
+		}
+		int standby = _router == null ? -1 : _router.pick(this._operation.stalenessMillis, this._writeLsn);
+		if(standby < 0) return read.run(timed(this._runner, timeoutSeconds));
+		try {
+			return read.run(timed(standbyRunner(standby), timeoutSeconds));
+		} catch(SQLException e) {
+			//class 08 is connection_exception
+			if(e.getSQLState() == null || !e.getSQLState().startsWith("08")) throw e;
+			_router.markDown(standby);
+			return read.run(timed(this._runner, timeoutSeconds));
+		}
+	}
+
+	private SqlRunner standbyRunner(int index){
+		if(this._standbyRunners.length < _router.size()) {
+			this._standbyRunners = Arrays.copyOf(this._standbyRunners, _router.size());
+		}
+		if(this._standbyRunners[index] == null) {
+			this._standbyRunners[index] = new SqlRunner(_router.pool(index));
+		}
+		return this._standbyRunners[index];
+	}
+
+	/*
+	 * Limits the runner's statements to the current operation's deadline, or
+	 * the workload class timeout if that is shorter. The pool sends it as
+	 * statement_timeout before any transaction the statement opens.
+	 */
+	private SqlRunner timed(SqlRunner runner, WorkloadClass workload){
+		return timed(runner, Math.min(this._operation.deadlineSeconds, workload.timeoutSeconds));
+	}
+
+	private SqlRunner timed(SqlRunner runner, AdmissionControl.Permit permit){
+		return timed(runner, permit.workload());
+	}
+
+	private SqlRunner timed(SqlRunner runner, int timeoutSeconds){
+		runner.setTimeout(timeoutSeconds);
+		return runner;
+	}
+
+	private AdmissionControl.Permit admit(WorkloadClass workload) throws SQLException {
+		try {
+			return AdmissionControl.shared().admit(workload);
+		} catch(SQLException e) {
+			this._failures++;
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to count a failed write that did not run on this session's
+	 * runners, e.g. through the commit coordinator or the intake journal.
+	 */
+	public void noteFailure(){
+		this._failures++;
+	}
+
+	/**
+	 * Method to return how many of this session's statements and writes
+	 * have failed or were refused admission so far, including those the
+	 * menu methods caught and only printed.
+	 */
+	public long failures(){
+		long failures = this._failures + this._runner.failures();
+		for(SqlRunner runner : this._standbyRunners) {
+			if(runner != null) failures += runner.failures();
+		}
+		return failures;
+	}
+
+	private static boolean isCancelled(SQLException e){
+		//57014 is query_canceled, raised by cancel() and by statement_timeout
+		return "57014".equals(e.getSQLState());
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params the parameter values
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryAndPrintResult(query, this._operation.workload, params);
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) once
+	 * it is admitted under the given workload class, and output the results
+	 * to standard out. Rows are streamed from the server in fetch-size
+	 * chunks; if the query is cancelled or hits its deadline part way, the
+	 * rows already printed are kept and counted.
+	 * 
+	 * @param query the input query string, with ? for each parameter
+	 * @param workload the workload class the query runs under
+	 * @param params the parameter values
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query or it was not admitted
+	 */
+	public int executeQueryAndPrintResult (String query, WorkloadClass workload, Object... params) throws SQLException {
+		try (AdmissionControl.Permit permit = admit(workload)) {
+			return read(permit, runner -> {
+				//prints rows as they arrive, so a cancelled query keeps what it printed
+				Rows.Printer printer = new Rows.Printer(System.out);
+				try {
+					runner.stream(query, printer, params);
+				} catch(SQLException e) {
+					if(!isCancelled(e)) throw e;
+					System.out.println("Query cancelled, partial result: " + printer.count() + " row(s)");
+				}
+				return (int) printer.count();
+			});
+		}
+	}
+	
+	/**
+	 * Method to run one of the fixed reports and output it to standard out.
+	 * The result comes from the shared ReportCache unless one of the
+	 * report's tables changed since it was cached; checking costs one read
+	 * of the Table_Version counters.
+	 * 
+	 * @param report the report to run
+	 * @param k the report parameter, ignored by reports that take none
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or it was not admitted
+	 */
+	public int executeReport (Report report, int k) throws SQLException {
+		return executeReport(report, k, System.out);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
+	/**
+	 * Method to run one of the fixed reports and print it to the given
+	 * stream.
+	 * 
+	 * @param report the report to run
+	 * @param k the report parameter, ignored by reports that take none
+	 * @param out the stream the rows are printed to
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or it was not admitted
+	 */
+	public int executeReport (Report report, int k, PrintStream out) throws SQLException {
+		String query = report.sql(k);
+		ReportCache.Entry entry;
+		try (AdmissionControl.Permit permit = admit(WorkloadClass.REPORT)) {
+			entry = read(permit, runner -> runner.call(query, (conn, timer) -> {
+				ReportCache.Entry fetched = ReportCache.shared().fetch(conn, query, report.tables);
+				timer.rows(fetched.rows.size());
+				return fetched;
+			}));
+		}
 		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		//output them the same way executeQueryAndPrintResult does
+		if(!entry.rows.isEmpty()){
+			for(String column : entry.columns){
+				out.print(column + "\t");
+			}
+			out.println();
+		}
+		for(List<String> record : entry.rows){
+			for(String value : record)
+				out.print(value + "\t");
+			out.println();
+		}
+		return entry.rows.size();
 	}
-	
+
+	/**
+	 * Method to export a query's result as gzip-compressed CSV or binary
+	 * COPY data, streamed with constant memory. It is admitted as a report
+	 * but limited by the EXPORT deadline rather than the report class
+	 * timeout, and cancel() stops the COPY.
+	 * 
+	 * @param query the query whose rows are exported
+	 * @param format the export format
+	 * @param destination a file name; standard out carries the menu, so
+	 * only the ReportExport command line exports there
+	 * @return the number of rows exported
+	 * @throws java.sql.SQLException when the export failed or was not admitted
+	 * @throws java.io.IOException when the destination cannot be written
+	 */
+	public long exportQuery (String query, ReportExport.Format format, String destination) throws SQLException, IOException {
+		if(destination.isEmpty() || destination.equals("-")) {
+			throw new IOException("Give a file name to export to");
+		}
+		try (AdmissionControl.Permit permit = admit(WorkloadClass.REPORT)) {
+			return read(permit, Operation.EXPORT.deadlineSeconds, runner -> runner.call(query, (conn, timer) -> {
+				this._copying = conn.connection;
+				try {
+					long rows = ReportExport.export(conn.connection, query, format, destination);
+					timer.rows(rows);
+					return rows;
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					this._copying = null;
+				}
+			}));
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params the parameter values
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		return executeQueryAndReturnResult(query, this._operation.workload, params);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) once
+	 * it is admitted under the given workload class, and return the results
+	 * as a list of records.
+	 * 
+	 * @param query the input query string, with ? for each parameter
+	 * @param workload the workload class the query runs under
+	 * @param params the parameter values
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query or it was not admitted
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, WorkloadClass workload, Object... params) throws SQLException { 
+		try (AdmissionControl.Permit permit = admit(workload)) {
+			return read(permit, runner -> runner.list(query, params));
+		}
 	}//end executeQueryAndReturnResult
-	
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params the parameter values
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		return executeQueryAndReturnResult(query, params).size();
+	}
+	
+	/**
+	 * Method to search customers by name or phone with prefix, case and
+	 * typo tolerant matching. Each record has the Customer columns in table
+	 * order followed by its match score.
+	 * 
+	 * @param term the name or phone number typed at the desk
+	 * @return the best matching customers, best first
+	 * @throws java.sql.SQLException when failed to execute the query, with
+	 * SQLState 57014 when it ran out of time, which says nothing about
+	 * whether the customer exists
+	 */
+	public List<List<String>> searchCustomers(String term) throws SQLException {
+		try (AdmissionControl.Permit permit = admit(WorkloadClass.INTAKE)) {
+			return read(permit, runner -> runner.call("customer search", (conn, timer) -> {
+				List<List<String>> found = CustomerSearch.search(conn, term, Integer.getInteger("shop.search.limit", 10));
+				timer.rows(found.size());
+				return found;
+			}));
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to load a customer's cars, open requests, recent closed
+	 * requests and lifetime bill in a single round trip.
+	 * 
+	 * @param customerId the customer's id
+	 * @return the customer profile, or null if there is no such customer
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public CustomerProfile loadCustomerProfile(int customerId) throws SQLException {
+		try (AdmissionControl.Permit permit = admit(WorkloadClass.INTAKE)) {
+			return read(permit, runner -> runner.call("customer profile", (conn, timer) -> {
+				CustomerProfile profile = CustomerProfile.load(conn, customerId, Integer.getInteger("shop.profile.recent", 5));
+				timer.rows(profile == null ? 0 : 1);
+				return profile;
+			}));
+		}
+	}
+
+	/*
+	 * Opens the connection pool, commit coordinator and intake journal for
+	 * the first session of this process; later sessions share them. The
+	 * pool has a connection for every statement AdmissionControl lets run
+	 * at once, unless -Ddb.pool.size says otherwise.
+	 */
+	private static synchronized void openShared(String url, String dbname, String user, String passwd) throws IOException, SQLException {
+		if(_sessions > 0) {
+			_sessions++;
+			return;
+		}
+		int running = 0;
+		for(WorkloadClass workload : WorkloadClass.values()) {
+			running += workload.concurrency;
+		}
+		_pool = new ConnectionPool(url, user, passwd, Integer.getInteger("db.pool.size", running),
+			Integer.getInteger("db.statement.cache", 32), Long.getLong("db.pool.wait.ms", 5000L));
+		try (ConnectionPool.Pooled conn = _pool.borrow()) {
+			_board = new TicketBoard();
+			//the board comes from the last snapshot plus the changes since,
+			//or from a full scan without one
+			_snapshot = ShopSnapshot.open(conn.connection, _board);
+			_coordinator = CommitCoordinator.fromProperties(url, user, passwd);
+			_journal = new IntakeJournal(new File(System.getProperty("shop.journal", "intake.journal")), _coordinator);
+			//closures left in the journal by the last run are not in the
+			//database yet, so the board read above still has them open
+			for(Integer rid : _journal.pendingClosures()) {
+				_board.closing(rid);
+				_board.close(rid);
+			}
+			_journal.setListener(new IntakeJournal.Listener() {
+				public void serviceRequestApplied(int rid, String customerId, String vin, String date, String odometer, String complaint){
+					_board.open(new TicketBoard.Ticket(rid, Integer.parseInt(customerId), vin, date, Integer.parseInt(odometer), complaint));
+				}
 
-		int rowCount = 0;
+				public void closedRequestSettled(int rid){
+					_board.settled(rid);
+				}
+			});
+			_journal.start();
+			//other instances' writes arrive as notifications on a dedicated connection
+			_listener = new ChangeListener(url, user, passwd);
+			_listener.addHandler(_board);
+			_listener.start();
+			_snapshot.start();
+			_dispatcher = new MechanicDispatcher(_board, _coordinator);
+			_dispatcher.restore(conn.connection);
+			_dispatcher.start();
+		}
+		_router = ReadRouter.fromProperties(url, dbname, user, passwd);
+		if(_router != null) {
+			//writes through the coordinator must be seen by standbys too
+			_coordinator.trackLsn();
+			_router.start();
+		}
+		_sessions++;
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/*
+	 * Closes the shared journal, coordinator and pools when the last session
+	 * leaves.
+	 */
+	private static synchronized void releaseShared(){
+		if(_sessions == 0 || --_sessions > 0) return;
+		_dispatcher.close();
+		if(_router != null) _router.close();
+		_listener.close();
+		_journal.close(Long.getLong("shop.journal.close.ms", 5000L));
+		_coordinator.close(Long.getLong("shop.journal.close.ms", 5000L));
+		_snapshot.close();
+		_pool.close();
+		_journal = null;
+		_coordinator = null;
+		_board = null;
+		_listener = null;
+		_dispatcher = null;
+		_router = null;
+		_snapshot = null;
+		_pool = null;
 	}
-	
+
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * Method to return the intake journal used for service requests and
+	 * closures.
 	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @return the intake journal
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public IntakeJournal getJournal(){
+		return _journal;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to return the shared board of open service requests.
+	 * 
+	 * @return the open ticket board
 	 */
-	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+	public TicketBoard getBoard(){
+		return _board;
+	}
+
+	/**
+	 * Method to tell the clerk about journaled requests and closures the
+	 * database refused since the last menu. A refused closure leaves its
+	 * request open, so it is read back onto the board.
+	 */
+	public void reportRejections(){
+		if(_journal == null) return;
+		Set<Integer> reopened = new HashSet<Integer>();
+		for(IntakeJournal.Rejection rejection : _journal.takeRejections()) {
+			if(rejection.kind == IntakeJournal.SERVICE_REQUEST) {
+				System.out.println("Service request " + rejection.key + " for customer " + rejection.fields[0]
+					+ ", car " + rejection.fields[1] + " was NOT recorded: " + rejection.reason);
+			} else {
+				System.out.println("Closing service request " + rejection.fields[0] + " (confirmation " + rejection.key
+					+ ") FAILED, it is still open: " + rejection.reason);
+				reopened.add(Integer.valueOf(rejection.fields[0]));
+			}
+		}
+		if(reopened.isEmpty()) return;
+		try (ConnectionPool.Pooled conn = _pool.borrow()) {
+			_board.reload(reopened, conn.connection);
+		} catch(SQLException e) {
+			System.out.println("Open requests could not be read back: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to run a dispatch round with the current mechanic roster and
+	 * print the dispatcher's queue statistics.
+	 * 
+	 * @return the number of service requests assigned
+	 * @throws java.sql.SQLException when failed to read the mechanics
+	 */
+	public int dispatchOpenRequests() throws SQLException {
+		int assigned;
+		try (AdmissionControl.Permit permit = admit(WorkloadClass.CLOSURE)) {
+			timed(this._runner, permit).call(MechanicDispatcher.MECHANICS_QUERY, (conn, timer) -> {
+				_dispatcher.loadMechanics(conn.connection);
+				timer.rows(0);
+				return null;
+			});
+			assigned = _dispatcher.dispatch();
+		}
+		_dispatcher.printStatistics();
+		return assigned;
+	}
+
+	/**
+	 * Method to return the group commit coordinator for writes that can
+	 * share a transaction with other sessions.
+	 * 
+	 * @return the commit coordinator
+	 */
+	public CommitCoordinator getCoordinator(){
+		return _coordinator;
+	}
+
+	/**
+	 * Method to leave the shared state, closing the connection pools when
+	 * this is the last session. Later calls do nothing.
+	 */
+	public synchronized void cleanup(){
+		if(this._closed) return;
+		this._closed = true;
+		releaseShared();
 	}//end cleanup
 
 	/**
@@ -222,6 +728,7 @@ public class MechanicShop{
 		}//end if
 		
 		MechanicShop esql = null;
+		WarmStart startup = new WarmStart();
 		
 		try{
 			System.out.println("(1)");
@@ -235,15 +742,34 @@ public class MechanicShop{
 				return;
 			}
 			
+			startup.phase("load driver");
 			System.out.println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
+			startup.phase("connect and load shared state");
+			installShutdownHook(esql);
+			WorkloadRecorder.fromProperties();
+			if(Boolean.parseBoolean(System.getProperty("shop.warmup", "true"))) {
+				System.out.print("Warming up...");
+				try {
+					startup.run(esql, "jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, "");
+					System.out.println("Done");
+				} catch(Exception e) {
+					//a failed warm-up only costs speed
+					System.out.println("Warm-up failed: " + e.getMessage());
+				}
+				//statement timings and admission counts describe the clerks' work
+				StatementMetrics.shared().clear();
+				AdmissionControl.shared().resetStatistics();
+			}
+			startup.printReport();
 			
 			boolean keepon = true;
 			while(keepon){
+				esql.reportRejections();
 				System.out.println("MAIN MENU");
 				System.out.println("---------");
 				System.out.println("1. AddCustomer");
@@ -256,29 +782,29 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
+				System.out.println("12. ShowWorkloadStatistics");
+				System.out.println("13. ExportReport");
+				System.out.println("14. ListCustomersWithAtLeastNCars");
+				System.out.println("15. FleetSizeHistogram");
+				System.out.println("16. DispatchOpenRequests");
 				System.out.println("11. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql, -1); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+				int choice = readChoice();
+				WorkloadRecorder.begin(choice);
+				try {
+					keepon = runOperation(esql, choice);
+				} finally {
+					WorkloadRecorder.end();
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
+				WorkloadRecorder.close();
 				if(esql != null) {
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
@@ -290,23 +816,59 @@ public class MechanicShop{
 		}
 	}
 
+	/**
+	 * Method to run one menu operation, reading its input from in.
+	 *
+	 * @param esql the session to run it on
+	 * @param choice the menu choice
+	 * @return false when the choice ends the session
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public static boolean runOperation(MechanicShop esql, int choice) throws Exception {
+		esql.setOperation(Operation.forChoice(choice));
+		switch (choice){
+			case 1: AddCustomer(esql); break;
+			case 2: AddMechanic(esql); break;
+			case 3: AddCar(esql, -1); break;
+			case 4: InsertServiceRequest(esql); break;
+			case 5: CloseServiceRequest(esql); break;
+			case 6: ListCustomersWithBillLessThan100(esql); break;
+			case 7: ListCustomersWithMoreThan20Cars(esql); break;
+			case 8: ListCarsBefore1995With50000Milles(esql); break;
+			case 9: ListKCarsWithTheMostServices(esql); break;
+			case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+			case 11: return false;
+			case 12: ShowWorkloadStatistics(esql); break;
+			case 13: ExportReport(esql); break;
+			case 14: ListCustomersWithAtLeastNCars(esql); break;
+			case 15: FleetSizeHistogram(esql); break;
+			case 16: DispatchOpenRequests(esql); break;
+		}
+		return true;
+	}
+
+	/*
+	 * Makes Ctrl-C, or any other shutdown, cancel the running statement so
+	 * its backend stops at once instead of running on after the client is
+	 * gone, then close the session through cleanup() as a normal exit does.
+	 */
+	private static void installShutdownHook(MechanicShop esql){
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if(esql.cancel()) {
+				System.out.println("\nCancelling query...");
+			}
+			esql.cleanup();
+		}, "shop-shutdown"));
+	}
+
 	public static int readChoice() {
-		int input;
-		// returns only if a correct value is given.
-		do {
-			System.out.print("Please make your choice: ");
-			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
-				break;
-			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
-				continue;
-			}//end try
-		}while (true);
-		return input;
+		return Console.readChoice(in);
 	}//end readChoice
 	
-	public static void AddCustomer(MechanicShop esql){//1
+	/*
+	 * Returns the new customer's id, or -1 when none was added.
+	 */
+	public static int AddCustomer(MechanicShop esql){//1
 		try{
 			String fname = "";
 			String lname = "";
@@ -358,14 +920,14 @@ public class MechanicShop{
 			}
 			isValid = false;
 			
-         		String query = "INSERT INTO customer(fname, lname, phone, address) VALUES ";
-			String input = "(\'" + fname + "\', \'" + lname + "\', \'" + phone + "\', \'" + address + "\')";
-         		query += input;
+         		String query = "INSERT INTO customer(fname, lname, phone, address) VALUES (?, ?, ?, ?) RETURNING id";
 
-         		esql.executeUpdate(query);
+         		int id = esql.executeInsertAndReturnId(query, fname, lname, phone, address);
 			esql.executeQueryAndPrintResult("SELECT * FROM customer");
+			return id;
       		}catch(Exception e){
          		System.err.println (e.getMessage());
+			return -1;
       		}
 	}
 	
@@ -420,18 +982,21 @@ public class MechanicShop{
 			}	
 			isValid = false;
 
-         		String query = "INSERT INTO mechanic(fname, lname, experience) VALUES ";
-			String input = "(\'" + fname + "\', \'" + lname + "\', " + experience + ")";
-         		query += input;
+         		String query = "INSERT INTO mechanic(fname, lname, experience) VALUES (?, ?, ?)";
 
-         		esql.executeUpdate(query);
+         		esql.executeUpdate(query, fname, lname, Integer.parseInt(experience));
 			esql.executeQueryAndPrintResult("SELECT * FROM mechanic");
       		}catch(Exception e){
          		System.err.println (e.getMessage());
       		}
 	}
 	
-	public static void AddCar(MechanicShop esql, int recentId){//3
+	/*
+	 * Adds a car and links it to a customer, the given one when called from
+	 * InsertServiceRequest. Returns the new car's VIN, or null when it was
+	 * not added.
+	 */
+	public static String AddCar(MechanicShop esql, int recentId){//3
 		try{
 			String vin = "";
 			String make = "";
@@ -443,8 +1008,8 @@ public class MechanicShop{
          			System.out.print("\tEnter Vehicle Identification Number: ");
          			vin = in.readLine();
 				if(vin.length() > 0 && vin.length() <= 16) {
-					String check = "SELECT * FROM car WHERE vin=\'" + vin + "\'";
-					inDatabase = esql.executeQuery(check);
+					String check = "SELECT vin FROM car WHERE vin = ?";
+					inDatabase = esql.executeQuery(check, vin);
 					if(inDatabase == 0) {
 						isValid = true;
 					}
@@ -501,33 +1066,32 @@ public class MechanicShop{
 				}
 			}	
 			isValid = false;
-         		String query = "INSERT INTO car(vin, make, model, year) VALUES ";
-			String input = "(\'" + vin + "\', \'" + make + "\', \'" + model + "\', \'" + year + "\')";
-         		query += input;
-
-         		esql.executeUpdate(query);
-			
+			int ownerId;
 			if(recentId > -1) {//Coming from ServiceRequest
-				String ownsQuery = "INSERT INTO owns (customer_id, car_vin) VALUES (\'" + recentId + "\', \'" + vin + "\')";
-				esql.executeUpdate(ownsQuery);
+				ownerId = recentId;
 			}
 			else {//Coming from menu, need to get customer information only to existing customer
-				List<List<String>> checkResult = esql.executeQueryAndReturnResult("SELECT * FROM customer WHERE lname = \'alskdjfklfjafkldjadf\'");
+				List<List<String>> checkResult = new ArrayList<List<String>>();
 
 				System.out.println("Please link this car to a customer");
 
 				while(checkResult.size() == 0) {
-					System.out.print("\tEnter customer's last name: ");
+					System.out.print("\tEnter customer's name or phone number: ");
 					String lname = in.readLine();
-					String queryLname = "SELECT * FROM customer WHERE lname = \'" + lname + "\'";
-					checkResult = esql.executeQueryAndReturnResult(queryLname);
+					try {
+						checkResult = esql.searchCustomers(lname);
+					} catch(SQLException e) {
+						if(!isCancelled(e)) throw e;
+						System.out.println(e.getMessage() + ", try again");
+						continue;
+					}
 					
 					if(checkResult.size() == 0) {
-						System.out.println("Last name not found, try again");
+						System.out.println("No matching customer found, try again");
 					}
 				}
 				for(int i = 0; i < checkResult.size(); i++) {
-					String listString = i + ". " + checkResult.get(i).get(1).replaceAll("\\s", "") + " " + checkResult.get(i).get(2).replaceAll("\\s", "") + ", Phone#:" + checkResult.get(i).get(3).replaceAll("\\s", "") + ", Address:" + checkResult.get(i).get(4).replaceAll("\\s++$", "");
+					String listString = i + ". " + checkResult.get(i).get(1).trim() + " " + checkResult.get(i).get(2).trim() + ", Phone#:" + checkResult.get(i).get(3).trim() + ", Address:" + checkResult.get(i).get(4).trim();
 				System.out.println(listString);
 				}
 			
@@ -549,16 +1113,39 @@ public class MechanicShop{
 				}
 				System.out.println(listChoice);
 				int cid = listChoice;
-				String ownsQuery = "INSERT INTO owns (customer_id, car_vin) VALUES (\'" + checkResult.get(cid).get(0) + "\', \'" + vin + "\')";
-				
-				esql.executeUpdate(ownsQuery);	
+				ownerId = Integer.parseInt(checkResult.get(cid).get(0));
+			}
 
+			//car and ownership are committed together with other sessions' writes
+			final String carVin = vin, carMake = make, carModel = model;
+			final int carYear = Integer.parseInt(year), carOwner = ownerId;
+			CompletableFuture<Void> added = esql.getCoordinator().submit(WorkloadClass.INTAKE, conn -> {
+				try (PreparedStatement car = conn.prepareStatement("INSERT INTO car(vin, make, model, year) VALUES (?, ?, ?, ?)");
+				     PreparedStatement link = conn.prepareStatement("INSERT INTO owns (customer_id, car_vin) VALUES (?, ?)")) {
+					car.setString(1, carVin);
+					car.setString(2, carMake);
+					car.setString(3, carModel);
+					car.setInt(4, carYear);
+					car.executeUpdate();
+					link.setInt(1, carOwner);
+					link.setString(2, carVin);
+					link.executeUpdate();
+				}
+				return null;
+			});
+			try {
+				CommitCoordinator.await(added, Long.getLong("shop.commit.wait.ms", 10000L));
+			} catch(SQLException e) {
+				esql.noteFailure();
+				throw e;
 			}
-					
+			esql.noteWrite(esql.getCoordinator().lastCommitLsn());
+			return carVin;
 			
 			//esql.executeQueryAndPrintResult("SELECT * FROM car");
       		}catch(Exception e){
          		System.err.println (e.getMessage());
+			return null;
       		}
 	}
 	
@@ -568,7 +1155,7 @@ public class MechanicShop{
 			String lname = "";
 			int listChoice = -1;
 			while(!isValid) {
-         			System.out.print("\tEnter Customer's Last Name: ");
+         			System.out.print("\tEnter Customer's Name or Phone Number: ");
 				lname = in.readLine();
 				if(lname.length() > 0 && lname.length() <= 32) {
 					isValid = true;			
@@ -578,11 +1165,19 @@ public class MechanicShop{
 				}
 			}
 			isValid = false;
-			String checkLname = "SELECT * FROM customer WHERE customer.lname=\'" + lname + "\'";
-			List<List<String>> checkResult = esql.executeQueryAndReturnResult(checkLname);
+			//ranked by prefix, then similarity, so typos still find the customer
+			List<List<String>> checkResult;
+			try {
+				checkResult = esql.searchCustomers(lname);
+			} catch(SQLException e) {
+				if(!isCancelled(e)) throw e;
+				//no answer is not "no such customer", so no new customer is offered
+				System.out.println(e.getMessage() + ", cancelling service request; please try again");
+				return;
+			}
 			if(checkResult.size() > 0) { //Multiple returns for lastname
 				for(int i = 0; i < checkResult.size(); i++) {
-					String listString = i + ". " + checkResult.get(i).get(1).replaceAll("\\s", "") + " " + checkResult.get(i).get(2).replaceAll("\\s", "") + ", Phone#:" + checkResult.get(i).get(3).replaceAll("\\s", "") + ", Address:" + checkResult.get(i).get(4).replaceAll("\\s++$", "");			
+					String listString = i + ". " + checkResult.get(i).get(1).trim() + " " + checkResult.get(i).get(2).trim() + ", Phone#:" + checkResult.get(i).get(3).trim() + ", Address:" + checkResult.get(i).get(4).trim();			
 					System.out.println(listString);
 				}
 				boolean listValid = false; 
@@ -605,14 +1200,18 @@ public class MechanicShop{
 			}
 			else {//No lname found, offer to make a new customer
 				while(!isValid) {
-					System.out.println("Did not find any customers with that last name");
+					System.out.println("Did not find any customers matching that name");
 					System.out.println("Add a new customer? (Y/N)");
 					String cont = in.readLine();
 					if(cont.equals("Y")) {
-						AddCustomer(esql);
-						int mostRecent = esql.getCurrSeqVal("customer_id");
-						String newCustomerQuery = "SELECT * FROM customer WHERE Customer.id=" + mostRecent;
-						List<List<String>> newResult = esql.executeQueryAndReturnResult(newCustomerQuery);
+						int mostRecent = AddCustomer(esql);
+						if(mostRecent < 0) {
+							System.out.println("No new customer added, cancelling service request");
+							return;
+						}
+						//same columns as searchCustomers, named so a migration's column order does not matter
+						String newCustomerQuery = "SELECT id, fname, lname, phone, address FROM customer WHERE Customer.id = ?";
+						List<List<String>> newResult = esql.executeQueryAndReturnResult(newCustomerQuery, mostRecent);
 						checkResult.add(newResult.get(0));
 						isValid = true;
 						listChoice = 0;	
@@ -627,20 +1226,37 @@ public class MechanicShop{
 			
 			
 			String vin = "";
+			String firstName = checkResult.get(listChoice).get(1).trim();
 			
-			String carsOwnedQuery = "SELECT C.vin, C.make, C.model, C.year FROM Car C, Owns O WHERE O.customer_id = " + checkResult.get(listChoice).get(0) + " AND O.car_vin = C.vin";
-			List<List<String>> carsOwnedResult = esql.executeQueryAndReturnResult(carsOwnedQuery);
+			//cars, open requests, history and lifetime bill in one round trip
+			CustomerProfile profile = esql.loadCustomerProfile(Integer.parseInt(checkResult.get(listChoice).get(0)));
+			if(profile == null) {
+				//deleted since the search found it
+				System.out.println("Customer no longer exists, cancelling service request");
+				return;
+			}
+			System.out.println(profile);
+			for(CustomerProfile.OpenRequest open : profile.openRequests) {
+				System.out.println("\tOpen: " + open);
+			}
+			for(CustomerProfile.ClosedRequest closed : profile.recentClosed) {
+				System.out.println("\tClosed: " + closed);
+			}
+			List<CustomerProfile.OwnedCar> carsOwnedResult = profile.cars;
 
 			boolean createNewCar = false;
 			if(carsOwnedResult.size() > 0) {
 				for(int i = 0; i < carsOwnedResult.size(); i++) {
-					String printString = i + ". " + carsOwnedResult.get(i).get(0) + ", "  +carsOwnedResult.get(i).get(1) +  ", "  + carsOwnedResult.get(i).get(2) +  ", "  + carsOwnedResult.get(i).get(3);
+					String printString = i + ". " + carsOwnedResult.get(i);
 					System.out.println(printString);
 						
 				}
 			
-				System.out.println("Select a car from this list? [Yes/No] ");
-				String cont = in.readLine();
+				String cont = "";
+				while(!cont.equals("Yes") && !cont.equals("No")) {
+					System.out.println("Select a car from this list? [Yes/No] ");
+					cont = in.readLine();
+				}
 				if(cont.equals("Yes")) {
 					boolean listValid = false;
 					while(!listValid) {
@@ -651,7 +1267,7 @@ public class MechanicShop{
 							carChoice = Integer.parseInt(in.readLine());
 							if(carChoice >= 0 && carChoice < carsOwnedResult.size()) {
 								listValid = true;
-								vin = carsOwnedResult.get(carChoice).get(0);
+								vin = carsOwnedResult.get(carChoice).vin;
 							}
 							else {
 								System.out.println("Invalid option selected, please try again");
@@ -670,13 +1286,18 @@ public class MechanicShop{
 			
 			}
 			else {
-				System.out.println("\t" + checkResult.get(listChoice).get(1).split("\\s+")[0] + " is not registered to a car currently");
+				System.out.println("\t" + firstName + " is not registered to a car currently");
 				createNewCar = true;
 			}
 			
 			if(createNewCar == true) {
-				System.out.println("\tAdding car for " + checkResult.get(listChoice).get(1).split("\\s+")[0]);
-				AddCar(esql, Integer.parseInt(checkResult.get(listChoice).get(0)));
+				System.out.println("\tAdding car for " + firstName);
+				//the request is for the car just added
+				vin = AddCar(esql, Integer.parseInt(checkResult.get(listChoice).get(0)));
+				if(vin == null) {
+					System.out.println("No car added, cancelling service request");
+					return;
+				}
 			}
 			
 
@@ -714,15 +1335,18 @@ public class MechanicShop{
 			LocalDateTime dtNow = LocalDateTime.now();
 			DateTimeFormatter dt = DateTimeFormatter.ofPattern("MM/dd/yyy HH:mm");
 			
-			List<List<String>> idTab = esql.executeQueryAndReturnResult("SELECT MAX(ownership_id) FROM owns");
-			int ownsId = Integer.parseInt(idTab.get(0).get(0));
-			String insertOwnsQuery = "SELECT O.car_vin FROM owns O WHERE O.ownership_id = " + ownsId;
-			vin = esql.executeQueryAndReturnResult(insertOwnsQuery).get(0).get(0);
 			System.out.println(checkResult.get(listChoice));
 				
-			String insertSrQuery = "INSERT INTO Service_Request(customer_id, car_vin, date, odometer, complain) VALUES (" + checkResult.get(listChoice).get(0) + ", \'" + vin + "\', \'" + dt.format(dtNow) + "\', " + odometer + ", \'" + complaint + "\')";
-			esql.executeUpdate(insertSrQuery);
-			esql.executeQueryAndPrintResult("SELECT * FROM Service_Request");	
+			//journaled so intake does not wait on the database
+			String key;
+			try {
+				key = esql.getJournal().appendServiceRequest(checkResult.get(listChoice).get(0), vin, dt.format(dtNow), odometer, complaint);
+			} catch(IOException e) {
+				esql.noteFailure();
+				throw e;
+			}
+			esql.noteJournalWrite();
+			System.out.println("Service request recorded, confirmation: " + key);
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
 		}	
@@ -733,11 +1357,8 @@ public class MechanicShop{
 			boolean isValid = false;
 			int mechId = -1;
 			int srId = -1;
-			int bill = -1;
 		
-			String getSrQuery = "SELECT * FROM Service_Request S WHERE S.rid NOT IN (SELECT C.rid FROM Closed_Request C)";
-			List<List<String>> srResult = esql.executeQueryAndReturnResult(getSrQuery);
-			if(srResult.isEmpty()) {
+			if(esql.getBoard().size() == 0) {
 				System.out.println("All Service Requests are closed");
 				return;
 			}
@@ -750,8 +1371,8 @@ public class MechanicShop{
 					System.out.println("Invalid mechanic id");
 				}
 				else {
-					String checkMechIdQuery = "SELECT M.id FROM Mechanic M WHERE M.id = " + mechId;
-					List<List<String>> checkMechIdResult = esql.executeQueryAndReturnResult(checkMechIdQuery);
+					String checkMechIdQuery = "SELECT M.id FROM Mechanic M WHERE M.id = ?";
+					List<List<String>> checkMechIdResult = esql.executeQueryAndReturnResult(checkMechIdQuery, WorkloadClass.CLOSURE, mechId);
 					Integer.parseInt(checkMechIdResult.get(0).get(0));
 					isValid = true;	
 				}
@@ -760,9 +1381,20 @@ public class MechanicShop{
 				}
 			}
 			isValid = false;
+			//open requests come from the shared board, not the database;
+			//the ones dispatched to this mechanic are listed first
+			List<TicketBoard.Ticket> srResult = new ArrayList<TicketBoard.Ticket>(esql.getBoard().claimedBy(mechId));
+			int assigned = srResult.size();
+			srResult.addAll(esql.getBoard().unclaimed());
+			if(srResult.isEmpty()) {
+				System.out.println("No open Service Requests for this mechanic");
+				return;
+			}
 			int srChoice = -1;
 			for(int i = 0; i < srResult.size(); i++) {
-				System.out.println(i + ". WID:" + srResult.get(i).get(0) + ", RID:" + srResult.get(i).get(1) + ", MID: " + srResult.get(i).get(2) + ", " + srResult.get(i).get(3) + ", " + srResult.get(i).get(4) + ", " + srResult.get(i).get(5));
+				if(i == assigned) System.out.println("Unassigned:");
+				else if(i == 0) System.out.println("Assigned to you:");
+				System.out.println(i + ". " + srResult.get(i));
 			}
 			while(!isValid) {
                                 try {
@@ -771,6 +1403,9 @@ public class MechanicShop{
                                 	if(srChoice < 0 || srChoice >= srResult.size()) {
                                         	System.out.println("Invalid service request option");
                                 	}
+                                	else if(srChoice >= assigned && !esql.getBoard().claim(srResult.get(srChoice).rid, mechId)) {
+                                        	System.out.println("That service request was taken by another mechanic");
+                                	}
                                 	else {
                                         	isValid = true;
                                 	}
@@ -780,15 +1415,29 @@ public class MechanicShop{
 			}
 			isValid = false;
 						
-			srId = srChoice;
-			DateTimeFormatter dt = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm");
-			LocalDateTime dtNow = LocalDateTime.now();
-			
-			System.out.print("\tAny additional comments: ");
-			String comment = in.readLine();
-			
-			while(!isValid) {
-				try {
+			srId = srResult.get(srChoice).rid;
+			try {
+				closeClaimedRequest(esql, srId, mechId);
+			} finally {
+				//no-op once the ticket is closed; dispatched tickets stay assigned
+				if(srChoice >= assigned) esql.getBoard().release(srId, mechId);
+			}
+		} catch(Exception e) {
+			System.out.println(e.getMessage());
+		}	
+	}
+
+	private static void closeClaimedRequest(MechanicShop esql, int srId, int mechId) throws Exception {
+		boolean isValid = false;
+		int bill = -1;
+		DateTimeFormatter dt = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm");
+		LocalDateTime dtNow = LocalDateTime.now();
+		
+		System.out.print("\tAny additional comments: ");
+		String comment = in.readLine();
+		
+		while(!isValid) {
+			try {
                                         System.out.print("\tEnter total payment due: ");
                                         bill = Integer.parseInt(in.readLine());
                                         if(bill <= 0) {
@@ -801,20 +1450,25 @@ public class MechanicShop{
                                         System.out.println("Invalid service request option");
                                 }
 
-			}
-			
-			String crQuery = "INSERT INTO Closed_Request(rid, mid, date, comment, bill) VALUES (" + srResult.get(srId).get(0) + ", " + mechId + ", \'" + dt.format(dtNow) + "\', \'" + comment + "\', " + bill + ")";
-			esql.executeUpdate(crQuery);
-			esql.executeQueryAndPrintResult("SELECT * FROM Closed_Request");
-		} catch(Exception e) {
-			System.out.println(e.getMessage());
-		}	
+		}
+		
+		//marked before the append so the drainer cannot settle it first
+		esql.getBoard().closing(srId);
+		String key;
+		try {
+			key = esql.getJournal().appendClosedRequest(Integer.toString(srId), mechId, dt.format(dtNow), comment, bill);
+		} catch(IOException e) {
+			esql.getBoard().settled(srId);
+			throw e;
+		}
+		esql.noteJournalWrite();
+		esql.getBoard().close(srId);
+		System.out.println("Service request closed, confirmation: " + key);
 	}
 	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try {
-			String query = "SELECT CR.date, CR.comment, CR.bill, CU.fname, CU.lname FROM Closed_Request CR, Customer CU, Service_Request SR WHERE CR.bill < 100 AND SR.rid = CR.rid AND SR.customer_id = CU.id";
-			esql.executeQueryAndPrintResult(query);	
+			esql.executeReport(Report.CUSTOMERS_WITH_BILL_LESS_THAN_100, 0);	
 		} catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -822,8 +1476,7 @@ public class MechanicShop{
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try {
-			String query = "SELECT C.fname, C.lname FROM Customer C, Owns O  WHERE C.id = O.customer_id GROUP BY C.id HAVING COUNT(*) > 20";
-			esql.executeQueryAndPrintResult(query);	
+			esql.executeReport(Report.CUSTOMERS_WITH_MORE_THAN_20_CARS, 0);	
 		} catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -831,8 +1484,7 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try {
-			String query = "SELECT C.make, C.model, C.year, SR.odometer FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin AND C.year < 1995 AND SR.odometer < 50000";
-			esql.executeQueryAndPrintResult(query);	
+			esql.executeReport(Report.CARS_BEFORE_1995_WITH_50000_MILES, 0);	
 		} catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -842,8 +1494,7 @@ public class MechanicShop{
 		try {
 			System.out.print("\tHow many cars do you want to see?: ");
 			int lim = Integer.parseInt(in.readLine());
-			String query = "SELECT C.make, C.model, C.year, SR.car_vin, COUNT(SR.car_vin) as requestsNum FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin GROUP BY C.make, C.model, C.year, SR.car_vin ORDER BY requestsNum DESC LIMIT " + lim;
-			esql.executeQueryAndPrintResult(query);	
+			esql.executeReport(Report.K_CARS_WITH_THE_MOST_SERVICES, lim);	
 		} catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -852,8 +1503,7 @@ public class MechanicShop{
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//9
 		try {
-			String query = "SELECT C.fname, C.lname, C.id, SUM(CR.bill) total FROM Customer C, Service_Request SR, Closed_Request CR WHERE C.id = SR.customer_id AND CR.rid = SR.rid GROUP BY C.fname, C.lname, C.id ORDER BY total DESC limit 5";
-			esql.executeQueryAndPrintResult(query);
+			esql.executeReport(Report.CUSTOMERS_IN_DESCENDING_ORDER_OF_THEIR_TOTAL_BILL, 0);
 			//esql.executeQueryAndPrintResult("EXPLAIN ANALYZE SELECT * FROM CUSTOMER");	
 		} catch(Exception e) {
 			System.out.println(e.getMessage());
@@ -861,4 +1511,64 @@ public class MechanicShop{
 		
 	}
 	
+	public static void ExportReport(MechanicShop esql){//13
+		try {
+			System.out.print("\tEnter report number (6-10) or table name: ");
+			String what = in.readLine();
+			int k = 0;
+			if(what.trim().equals("9")) {
+				System.out.print("\tHow many cars do you want to see?: ");
+				k = Integer.parseInt(in.readLine());
+			}
+			String query = ReportExport.queryFor(what, k);
+			System.out.print("\tFormat [csv/binary]: ");
+			ReportExport.Format format = ReportExport.Format.valueOf(in.readLine().trim().toUpperCase());
+			System.out.print("\tOutput file: ");
+			String destination = in.readLine().trim();
+			long start = System.currentTimeMillis();
+			long rows = esql.exportQuery(query, format, destination);
+			System.out.println("Exported " + rows + " row(s) in " + (System.currentTimeMillis() - start) + "ms");
+		} catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+	
+	public static void ListCustomersWithAtLeastNCars(MechanicShop esql){//14
+		try {
+			System.out.print("\tMinimum number of cars: ");
+			int minCars = Integer.parseInt(in.readLine());
+			esql.executeQueryAndPrintResult(FleetQueries.customersWithAtLeast(minCars), minCars);
+		} catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+	
+	public static void FleetSizeHistogram(MechanicShop esql){//15
+		try {
+			System.out.print("\tBucket width in cars: ");
+			int width = Integer.parseInt(in.readLine());
+			esql.executeQueryAndPrintResult(FleetQueries.histogram(), width);
+		} catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+	
+	public static void DispatchOpenRequests(MechanicShop esql){//16
+		try {
+			int assigned = esql.dispatchOpenRequests();
+			System.out.println("Assigned " + assigned + " service request(s)");
+		} catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+	
+	public static void ShowWorkloadStatistics(MechanicShop esql){//12
+		AdmissionControl.shared().printStatistics();
+		System.out.println(ReportCache.shared());
+		if(_router != null) System.out.println(_router);
+		if(_snapshot != null) _snapshot.printStatistics();
+		System.out.println("Statements:");
+		System.out.println(StatementMetrics.shared());
+	}
+	
 }
@@ -0,0 +1,55 @@
+/**
+ * This enum defines the console operations and what the execution layer
+ * needs to know about each: its menu choice, the workload class it is
+ * admitted under and the deadline in seconds applied to every statement it
+ * issues, both as the JDBC query timeout and as the server-side
+ * statement_timeout. Deadlines are overridden with
+ * -Dshop.deadline.<operation>.s, e.g. -Dshop.deadline.add_car.s=3.
+ *
+ * Each operation also bounds how stale the data it reads may be, in
+ * milliseconds of replication lag, when standbys are configured (see
+ * ReadRouter); -1 keeps its reads on the primary. Bounds are overridden
+ * with -Dshop.staleness.<operation>.ms.
+ *
+ */
+
+public enum Operation {
+	ADD_CUSTOMER(1, WorkloadClass.INTAKE, 5, 1000),
+	ADD_MECHANIC(2, WorkloadClass.INTAKE, 5, 1000),
+	ADD_CAR(3, WorkloadClass.INTAKE, 5, 1000),
+	INSERT_SERVICE_REQUEST(4, WorkloadClass.INTAKE, 5, 1000),
+	CLOSE_SERVICE_REQUEST(5, WorkloadClass.CLOSURE, 10, -1),
+	LIST_CUSTOMERS_WITH_BILL_LESS_THAN_100(6, WorkloadClass.REPORT, 60, 30000),
+	LIST_CUSTOMERS_WITH_MORE_THAN_20_CARS(7, WorkloadClass.REPORT, 60, 30000),
+	LIST_CARS_BEFORE_1995_WITH_50000_MILES(8, WorkloadClass.REPORT, 60, 30000),
+	LIST_K_CARS_WITH_THE_MOST_SERVICES(9, WorkloadClass.REPORT, 60, 30000),
+	LIST_CUSTOMERS_IN_DESCENDING_ORDER_OF_THEIR_TOTAL_BILL(10, WorkloadClass.REPORT, 120, 30000),
+	EXPORT(13, WorkloadClass.REPORT, 3600, 60000),
+	LIST_FLEET_CUSTOMERS(14, WorkloadClass.REPORT, 30, 30000),
+	FLEET_SIZE_HISTOGRAM(15, WorkloadClass.REPORT, 30, 30000),
+	DISPATCH_OPEN_REQUESTS(16, WorkloadClass.CLOSURE, 10, -1),
+	//statements issued outside any menu operation
+	OTHER(-1, WorkloadClass.INTAKE, 30, -1);
+
+	public final int menuChoice;
+	public final WorkloadClass workload;
+	public final int deadlineSeconds;
+	public final long stalenessMillis;
+
+	Operation(int menuChoice, WorkloadClass workload, int deadlineSeconds, long stalenessMillis){
+		this.menuChoice = menuChoice;
+		this.workload = workload;
+		this.deadlineSeconds = Integer.getInteger("shop.deadline." + name().toLowerCase() + ".s", deadlineSeconds);
+		this.stalenessMillis = Long.getLong("shop.staleness." + name().toLowerCase() + ".ms", stalenessMillis);
+	}
+
+	/**
+	 * Method to return the operation behind a main menu choice.
+	 */
+	public static Operation forChoice(int choice){
+		for(Operation op : values()) {
+			if(op.menuChoice == choice) return op;
+		}
+		return OTHER;
+	}
+}
@@ -0,0 +1,249 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the routing of read-only statements to hot standbys.
+ * Standbys are listed with -Dshop.standbys as host:port or port entries,
+ * e.g. -Dshop.standbys=5433,5434, and serve the same database as the
+ * primary. A poller thread measures each standby's replay position and lag
+ * every -Dshop.standby.poll.ms (default 500). A read goes to a standby only
+ * if its lag is within the operation's staleness bound and it has replayed
+ * the session's last write; otherwise it stays on the primary. Each standby
+ * has one ConnectionPool, opened on first use and shared by every session.
+ *
+ */
+
+public class ReadRouter {
+	static final String PRIMARY_LSN_QUERY = "SELECT pg_current_wal_lsn()";
+	static final String STANDBY_QUERY = "SELECT pg_last_wal_replay_lsn(), EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000";
+
+	private final String _primaryUrl;
+	private final String _user;
+	private final String _passwd;
+	private final List<Standby> _standbys = new ArrayList<Standby>();
+	private final long _pollMillis;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final AtomicLong _primaryReads = new AtomicLong();
+	private volatile boolean _running = true;
+	private Thread _thread;
+
+	public ReadRouter(String primaryUrl, String dbname, String user, String passwd, String standbys){
+		this._primaryUrl = primaryUrl;
+		this._user = user;
+		this._passwd = passwd;
+		this._pollMillis = Long.getLong("shop.standby.poll.ms", 500L);
+		for(String standby : standbys.split(",")) {
+			String address = standby.trim();
+			if(address.isEmpty()) continue;
+			if(!address.contains(":")) address = "localhost:" + address;
+			_standbys.add(new Standby("jdbc:postgresql://" + address + "/" + dbname));
+		}
+	}
+
+	/**
+	 * Method to create the router configured by -Dshop.standbys.
+	 *
+	 * @return the router, or null when no standby is configured
+	 */
+	public static ReadRouter fromProperties(String primaryUrl, String dbname, String user, String passwd){
+		String standbys = System.getProperty("shop.standbys", "").trim();
+		if(standbys.isEmpty()) return null;
+		return new ReadRouter(primaryUrl, dbname, user, passwd, standbys);
+	}
+
+	/**
+	 * Method to start the lag poller thread.
+	 */
+	public void start(){
+		_thread = new Thread(this::pollLoop, "standby-poller");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	private void pollLoop(){
+		Connection primary = null;
+		while(_running) {
+			try {
+				if(primary == null || primary.isClosed()) {
+					primary = DriverManager.getConnection(_primaryUrl, _user, _passwd);
+				}
+				long primaryLsn;
+				Statement stmt = primary.createStatement();
+				ResultSet rs = stmt.executeQuery(PRIMARY_LSN_QUERY);
+				rs.next();
+				primaryLsn = parseLsn(rs.getString(1));
+				stmt.close();
+				for(Standby standby : _standbys) {
+					standby.poll(primaryLsn, _user, _passwd);
+				}
+			} catch(SQLException e) {
+				//without the primary's position no standby can be trusted
+				for(Standby standby : _standbys) standby.available = false;
+				close(primary);
+				primary = null;
+			}
+			try {
+				Thread.sleep(_pollMillis);
+			} catch(InterruptedException e) {
+				break;
+			}
+		}
+		close(primary);
+		for(Standby standby : _standbys) {
+			close(standby.pollConnection);
+		}
+	}
+
+	/**
+	 * Method to choose a standby for a read, round robin among those that
+	 * qualify.
+	 *
+	 * @param stalenessMillis how old the data may be; negative for none
+	 * @param writeLsn the WAL position of the session's last write
+	 * @return the standby's index, or -1 to read from the primary
+	 */
+	public int pick(long stalenessMillis, long writeLsn){
+		if(stalenessMillis >= 0) {
+			int start = Math.floorMod(_next.getAndIncrement(), _standbys.size());
+			long now = System.currentTimeMillis();
+			for(int i = 0; i < _standbys.size(); ++i) {
+				int index = (start + i) % _standbys.size();
+				Standby standby = _standbys.get(index);
+				//lag grows by the time since it was measured
+				if(standby.available && standby.replayLsn >= writeLsn && standby.lagMillis + (now - standby.polledAt) <= stalenessMillis) {
+					standby.reads.incrementAndGet();
+					return index;
+				}
+			}
+		}
+		_primaryReads.incrementAndGet();
+		return -1;
+	}
+
+	/**
+	 * Method to return the pool of connections to a standby, sized like
+	 * the primary's with -Ddb.pool.size.
+	 */
+	public synchronized ConnectionPool pool(int index){
+		Standby standby = _standbys.get(index);
+		if(standby.pool == null) standby.pool = ConnectionPool.fromProperties(standby.url, _user, _passwd);
+		return standby.pool;
+	}
+
+	/**
+	 * Method to take a standby out of rotation until the next successful
+	 * poll, e.g. after a session failed to reach it.
+	 */
+	public void markDown(int index){
+		_standbys.get(index).available = false;
+	}
+
+	public int size(){
+		return _standbys.size();
+	}
+
+	/**
+	 * Method to read the primary's current WAL position, which every commit
+	 * acknowledged before the call is at or behind.
+	 */
+	public static long currentLsn(Connection primary) throws SQLException {
+		Statement stmt = primary.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(PRIMARY_LSN_QUERY);
+			rs.next();
+			return parseLsn(rs.getString(1));
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to turn a pg_lsn such as 16/B374D848 into a comparable number.
+	 */
+	static long parseLsn(String lsn){
+		if(lsn == null) return -1;
+		int slash = lsn.indexOf('/');
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+
+	private static void close(Connection conn){
+		try {
+			if(conn != null) conn.close();
+		} catch(SQLException e) {
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to stop the poller thread and close the standby pools.
+	 */
+	public synchronized void close(){
+		_running = false;
+		if(_thread != null) _thread.interrupt();
+		for(Standby standby : _standbys) {
+			if(standby.pool != null) standby.pool.close();
+		}
+	}
+
+	public String toString(){
+		StringBuilder result = new StringBuilder("Reads on primary: " + _primaryReads.get());
+		for(Standby standby : _standbys) {
+			result.append("\n").append(standby);
+		}
+		return result.toString();
+	}
+
+	static class Standby {
+		final String url;
+		final AtomicLong reads = new AtomicLong();
+		volatile boolean available = false;
+		volatile long replayLsn = -1;
+		volatile long lagMillis = Long.MAX_VALUE / 2;
+		volatile long polledAt = 0;
+		Connection pollConnection = null;
+		ConnectionPool pool = null;
+
+		Standby(String url){
+			this.url = url;
+		}
+
+		/*
+		 * A standby that has replayed everything the primary has written is
+		 * current however long ago its last replayed commit was.
+		 */
+		void poll(long primaryLsn, String user, String passwd){
+			try {
+				if(pollConnection == null || pollConnection.isClosed()) {
+					pollConnection = DriverManager.getConnection(url, user, passwd);
+				}
+				Statement stmt = pollConnection.createStatement();
+				ResultSet rs = stmt.executeQuery(STANDBY_QUERY);
+				rs.next();
+				long lsn = parseLsn(rs.getString(1));
+				double lag = rs.getDouble(2);
+				boolean noReplay = rs.wasNull();
+				stmt.close();
+				if(lsn < 0) throw new SQLException(url + " is not a standby");
+				replayLsn = lsn;
+				lagMillis = lsn >= primaryLsn ? 0 : noReplay ? Long.MAX_VALUE / 2 : (long) lag;
+				polledAt = System.currentTimeMillis();
+				available = true;
+			} catch(SQLException e) {
+				available = false;
+				ReadRouter.close(pollConnection);
+				pollConnection = null;
+			}
+		}
+
+		public String toString(){
+			return url + (available ? ": lag " + lagMillis + "ms" : ": unavailable") + ", reads " + reads.get();
+		}
+	}
+}
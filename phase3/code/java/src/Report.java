@@ -0,0 +1,51 @@
+/**
+ * This enum defines the fixed reports (menu choices 6 to 10): the query
+ * behind each one and the tables it reads, which is what the ReportCache
+ * checks for changes. Report 9 takes the number of cars k as a parameter.
+ *
+ */
+
+public enum Report {
+	CUSTOMERS_WITH_BILL_LESS_THAN_100(Operation.LIST_CUSTOMERS_WITH_BILL_LESS_THAN_100,
+		"SELECT CR.date, CR.comment, CR.bill, CU.fname, CU.lname FROM Closed_Request CR, Customer CU, Service_Request SR WHERE CR.bill < 100 AND SR.rid = CR.rid AND SR.customer_id = CU.id",
+		"closed_request", "customer", "service_request"),
+	CUSTOMERS_WITH_MORE_THAN_20_CARS(Operation.LIST_CUSTOMERS_WITH_MORE_THAN_20_CARS,
+		//Customer_Fleet is maintained from Owns, so its counter tracks Owns changes
+		"SELECT C.fname, C.lname FROM Customer C, Customer_Fleet F WHERE F.car_count > 20 AND C.id = F.customer_id",
+		"customer", "owns"),
+	CARS_BEFORE_1995_WITH_50000_MILES(Operation.LIST_CARS_BEFORE_1995_WITH_50000_MILES,
+		"SELECT C.make, C.model, C.year, SR.odometer FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin AND C.year < 1995 AND SR.odometer < 50000",
+		"car", "service_request"),
+	K_CARS_WITH_THE_MOST_SERVICES(Operation.LIST_K_CARS_WITH_THE_MOST_SERVICES,
+		"SELECT C.make, C.model, C.year, SR.car_vin, COUNT(SR.car_vin) as requestsNum FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin GROUP BY C.make, C.model, C.year, SR.car_vin ORDER BY requestsNum DESC LIMIT %d",
+		"car", "service_request"),
+	CUSTOMERS_IN_DESCENDING_ORDER_OF_THEIR_TOTAL_BILL(Operation.LIST_CUSTOMERS_IN_DESCENDING_ORDER_OF_THEIR_TOTAL_BILL,
+		"SELECT C.fname, C.lname, C.id, SUM(CR.bill) total FROM Customer C, Service_Request SR, Closed_Request CR WHERE C.id = SR.customer_id AND CR.rid = SR.rid GROUP BY C.fname, C.lname, C.id ORDER BY total DESC limit 5",
+		"customer", "service_request", "closed_request");
+
+	public final Operation operation;
+	public final String[] tables;
+	private final String _query;
+
+	Report(Operation operation, String query, String... tables){
+		this.operation = operation;
+		this._query = query;
+		this.tables = tables;
+	}
+
+	/**
+	 * Method to tell whether the report takes the parameter k.
+	 */
+	public boolean takesK(){
+		return _query.contains("%d");
+	}
+
+	/**
+	 * Method to return the report's SQL.
+	 *
+	 * @param k the report parameter, ignored by reports that take none
+	 */
+	public String sql(int k){
+		return takesK() ? String.format(_query, k) : _query;
+	}
+}
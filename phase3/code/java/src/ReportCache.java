@@ -0,0 +1,198 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * This class defines the result cache for the fixed reports. Entries are
+ * keyed by the report's SQL, which includes its parameters, and tagged with
+ * the Table_Version counters of the tables it reads. The write triggers in
+ * triggers.sql bump those counters, so a cached report is served until one
+ * of its inputs changes. The cache holds at most -Dshop.report.cache.mb
+ * (default 16) of results and evicts the least recently used first.
+ *
+ */
+
+public class ReportCache {
+	//a table's counter is spread over shard rows, see triggers.sql
+	static final String VERSIONS_QUERY = "SELECT table_name, SUM(version) FROM Table_Version GROUP BY table_name";
+
+	private static final ReportCache SHARED = new ReportCache(Long.getLong("shop.report.cache.mb", 16L) * 1024 * 1024);
+
+	private final long _maxBytes;
+	private long _bytes = 0;
+	private long _hits = 0;
+	private long _misses = 0;
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	ReportCache(long maxBytes){
+		this._maxBytes = maxBytes;
+	}
+
+	/**
+	 * Method to return the report cache shared by every session in this
+	 * process.
+	 */
+	public static ReportCache shared(){
+		return SHARED;
+	}
+
+	/**
+	 * Method to read the current change counter of every tracked table.
+	 *
+	 * @param conn the connection to read with
+	 * @return the counters by lower case table name
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Map<String, Long> readVersions(ConnectionPool.Pooled conn) throws SQLException {
+		Map<String, Long> versions = new HashMap<String, Long>();
+		ResultSet rs = conn.prepare(VERSIONS_QUERY).executeQuery();
+		try {
+			while(rs.next()) {
+				versions.put(rs.getString(1), rs.getLong(2));
+			}
+		} finally {
+			rs.close();
+		}
+		return versions;
+	}
+
+	/**
+	 * Method to look up a cached result.
+	 *
+	 * @param key the report's SQL
+	 * @param versions the current table counters
+	 * @return the cached entry, or null if it is missing or any of its tables
+	 * changed since it was computed
+	 */
+	public synchronized Entry get(String key, Map<String, Long> versions){
+		Entry entry = _entries.get(key);
+		if(entry != null && entry.isCurrent(versions)) {
+			_hits++;
+			return entry;
+		}
+		if(entry != null) {
+			_entries.remove(key);
+			_bytes -= entry.bytes;
+		}
+		_misses++;
+		return null;
+	}
+
+	/**
+	 * Method to store a freshly computed result. Results larger than the
+	 * whole cache are not kept.
+	 */
+	public synchronized void put(String key, Entry entry){
+		if(entry.bytes > _maxBytes) return;
+		Entry old = _entries.put(key, entry);
+		if(old != null) _bytes -= old.bytes;
+		_bytes += entry.bytes;
+		Iterator<Entry> eldest = _entries.values().iterator();
+		while(_bytes > _maxBytes && eldest.hasNext()) {
+			_bytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Method to return a report's result from the cache, running the report
+	 * on the given connection when it is missing or out of date.
+	 *
+	 * @param conn the connection to read the counters and the report with
+	 * @param query the report's SQL
+	 * @param tables the tables the report reads
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public Entry fetch(ConnectionPool.Pooled conn, String query, String[] tables) throws SQLException {
+		Map<String, Long> versions = readVersions(conn);
+		Entry entry = get(query, versions);
+		if(entry == null) {
+			ResultSet rs = conn.prepare(query).executeQuery();
+			try {
+				entry = Entry.read(rs, tables, versions);
+			} finally {
+				rs.close();
+			}
+			put(query, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Method to drop every cached result.
+	 */
+	public synchronized void clear(){
+		_entries.clear();
+		_bytes = 0;
+	}
+
+	public synchronized String toString(){
+		return "Report cache: " + _entries.size() + " entries, " + (_bytes / 1024) + "KB of " + (_maxBytes / 1024) + "KB, " + _hits + " hits, " + _misses + " misses";
+	}
+
+	/**
+	 * One cached report result with the table counters it was computed at.
+	 */
+	public static class Entry {
+		public final String[] columns;
+		public final List<List<String>> rows;
+		final Map<String, Long> versions;
+		final long bytes;
+
+		Entry(String[] columns, List<List<String>> rows, Map<String, Long> versions, long bytes){
+			this.columns = columns;
+			this.rows = rows;
+			this.versions = versions;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Method to build an entry from a result set.
+		 *
+		 * @param rs the report's result
+		 * @param tables the tables the report reads
+		 * @param versions the counters read before the report ran
+		 */
+		public static Entry read(ResultSet rs, String[] tables, Map<String, Long> versions) throws SQLException {
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			String[] columns = new String[numCol];
+			long bytes = 64;
+			for(int i = 1; i <= numCol; i++) {
+				columns[i - 1] = rsmd.getColumnName(i);
+				bytes += 40 + 2L * columns[i - 1].length();
+			}
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while(rs.next()) {
+				List<String> record = new ArrayList<String>(numCol);
+				bytes += 32 + 8L * numCol;
+				for(int i = 1; i <= numCol; i++) {
+					String value = rs.getString(i);
+					record.add(value);
+					if(value != null) bytes += 40 + 2L * value.length();
+				}
+				rows.add(record);
+			}
+			Map<String, Long> tagged = new HashMap<String, Long>();
+			for(String table : tables) {
+				tagged.put(table, versions.get(table));
+			}
+			return new Entry(columns, rows, tagged, bytes);
+		}
+
+		boolean isCurrent(Map<String, Long> current){
+			for(Map.Entry<String, Long> version : versions.entrySet()) {
+				Long now = current.get(version.getKey());
+				//an untracked table can never be proven unchanged
+				if(now == null || !now.equals(version.getValue())) return false;
+			}
+			return true;
+		}
+	}
+}
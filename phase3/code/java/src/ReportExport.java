@@ -0,0 +1,150 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.postgresql.PGConnection;
+
+/**
+ * This class defines the export of reports and raw tables. Rows are streamed
+ * by the server with COPY (query) TO STDOUT through the driver's CopyManager
+ * and gzip-compressed straight into a file or pipe, so memory use stays
+ * constant however large the result is. CSV includes a header row; BINARY is
+ * Postgres' binary COPY format, which COPY ... FROM can load back as is.
+ *
+ */
+
+public class ReportExport {
+	public enum Format { CSV, BINARY }
+
+	static final List<String> TABLES = Arrays.asList("customer", "mechanic", "car", "owns", "service_request", "closed_request");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Method to stream a query's result to an output stream as gzip.
+	 *
+	 * @param conn the connection to export from
+	 * @param query the query whose rows are exported
+	 * @param format CSV or BINARY
+	 * @param out where the gzip stream is written; left open
+	 * @return the number of rows exported
+	 * @throws java.sql.SQLException when the COPY fails
+	 * @throws java.io.IOException when the output cannot be written
+	 */
+	public static long export(Connection conn, String query, Format format, OutputStream out) throws SQLException, IOException {
+		String options = format == Format.CSV ? "(FORMAT csv, HEADER)" : "(FORMAT binary)";
+		GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingStream(out), BUFFER_SIZE);
+		long rows = conn.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (" + query + ") TO STDOUT WITH " + options, gzip);
+		gzip.finish();
+		gzip.flush();
+		return rows;
+	}
+
+	/**
+	 * Method to stream a query's result to a file, or to standard out when
+	 * the destination is "-". Standard out must be redirected, since gzip
+	 * data is no use on a terminal. A file left incomplete by a failed or
+	 * cancelled export is deleted.
+	 *
+	 * @return the number of rows exported
+	 * @throws java.io.IOException when standard out is the console or the
+	 * file cannot be written
+	 */
+	public static long export(Connection conn, String query, Format format, String destination) throws SQLException, IOException {
+		if(destination.equals("-")) {
+			if(System.console() != null) {
+				throw new IOException("Refusing to write gzip data to the console; give a file name or redirect standard out");
+			}
+			return export(conn, query, format, System.out);
+		}
+		File file = new File(destination);
+		boolean done = false;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+			long rows = export(conn, query, format, out);
+			done = true;
+			return rows;
+		} finally {
+			if(!done) file.delete();
+		}
+	}
+
+	/**
+	 * Method to return the query exporting a whole shop table.
+	 *
+	 * @throws java.lang.IllegalArgumentException for anything but a shop table
+	 */
+	public static String tableQuery(String table){
+		String name = table.trim().toLowerCase();
+		if(!TABLES.contains(name)) {
+			throw new IllegalArgumentException("Unknown table " + table + ", expected one of " + TABLES);
+		}
+		return "SELECT * FROM " + name;
+	}
+
+	/**
+	 * Method to return the query for a report given by its menu number, or
+	 * for a raw table given by name.
+	 *
+	 * @param what a report number from 6 to 10 or a table name
+	 * @param k the parameter of report 9
+	 */
+	public static String queryFor(String what, int k){
+		for(Report report : Report.values()) {
+			if(Integer.toString(report.operation.menuChoice).equals(what.trim())) {
+				return report.sql(k);
+			}
+		}
+		return tableQuery(what);
+	}
+
+	/**
+	 * Command line entry point for scheduled exports, e.g.
+	 * ReportExport mydb 5432 me closed_request bills.csv.gz csv
+	 *
+	 * @param args dbname port user report|table destination [csv|binary] [k]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ReportExport.class.getName () +
+		            " <dbname> <port> <user> <report 6-10|table> <file|-> [csv|binary] [k]");
+			return;
+		}//end if
+		Format format = args.length > 5 ? Format.valueOf(args[5].toUpperCase()) : Format.CSV;
+		int k = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		try (Connection conn = DriverManager.getConnection(url, args[2], "")) {
+			long start = System.currentTimeMillis();
+			long rows = export(conn, queryFor(args[3], k), format, args[4]);
+			System.err.println("Exported " + rows + " row(s) in " + (System.currentTimeMillis() - start) + "ms");
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Lets the gzip stream be finished without closing the caller's stream,
+	 * which matters when exporting to standard out.
+	 */
+	static class NonClosingStream extends java.io.FilterOutputStream {
+		NonClosingStream(OutputStream out){
+			super(out);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
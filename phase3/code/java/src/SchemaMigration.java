@@ -0,0 +1,390 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class defines the online migration of the padded CHAR name and
+ * address columns of Customer and Mechanic to VARCHAR/TEXT. For each table it
+ * adds shadow columns kept current by a dual-write trigger, backfills them in
+ * throttled id-range batches, builds copies of the affected indexes
+ * concurrently, and then swaps the columns in one short transaction.
+ *
+ * Dropped columns keep their bytes in the existing tuples, and no update
+ * or plain VACUUM returns heap pages to the system, so the padding saved is
+ * reported as estimated from the row widths before and after. The heap
+ * itself only shrinks when the table is rewritten, which VACUUM FULL does
+ * under an exclusive lock when -Dshop.migrate.vacuum.full=true; run it in a
+ * quiet period. Tables already migrated are skipped, so the command can be
+ * rerun.
+ *
+ */
+
+public class SchemaMigration {
+	//columns to convert, per table, with their new type
+	static final Map<String, String[][]> COLUMNS = new LinkedHashMap<String, String[][]>();
+	static {
+		COLUMNS.put("customer", new String[][]{ {"fname", "VARCHAR(32)"}, {"lname", "VARCHAR(32)"}, {"address", "TEXT"} });
+		COLUMNS.put("mechanic", new String[][]{ {"fname", "VARCHAR(32)"}, {"lname", "VARCHAR(32)"} });
+	}
+
+	static final String SUFFIX = "_new";
+	static final String PADDED_COLUMNS_QUERY = "SELECT column_name FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = ? AND data_type = 'character'";
+	static final String COLUMNS_QUERY = "SELECT column_name FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = ? ORDER BY ordinal_position";
+	static final String INDEXES_QUERY = "SELECT indexname, indexdef FROM pg_indexes WHERE schemaname = current_schema() AND tablename = ?";
+	static final String STORAGE_QUERY = "SELECT pg_relation_size(to_regclass(?)), pg_indexes_size(to_regclass(?)), pg_total_relation_size(to_regclass(?))";
+	static final String BUFFERS_QUERY = "SELECT count(*) FROM pg_buffercache B, pg_class C WHERE B.relfilenode = pg_relation_filenode(C.oid) AND B.reldatabase = (SELECT oid FROM pg_database WHERE datname = current_database()) AND (C.oid = to_regclass(?) OR C.oid IN (SELECT indexrelid FROM pg_index WHERE indrelid = to_regclass(?)))";
+
+	private final Connection _conn;
+	private final int _batch;
+	private final long _pauseMillis;
+	private final long _lockTimeoutMillis;
+	private final boolean _vacuumFull;
+
+	/**
+	 * Creates a migration on the given connection. Batches hold
+	 * -Dshop.migrate.batch ids (default 1000); after each batch the migration
+	 * sleeps as long as the batch took, and at least -Dshop.migrate.pause.ms
+	 * (default 50). DDL waits at most -Dshop.migrate.lock.ms (default 2000)
+	 * for its lock and is retried, so it never queues long behind traffic.
+	 * The table is rewritten with VACUUM FULL at the end only with
+	 * -Dshop.migrate.vacuum.full=true.
+	 */
+	public SchemaMigration(Connection conn){
+		this._conn = conn;
+		this._batch = Integer.getInteger("shop.migrate.batch", 1000);
+		this._pauseMillis = Long.getLong("shop.migrate.pause.ms", 50L);
+		this._lockTimeoutMillis = Long.getLong("shop.migrate.lock.ms", 2000L);
+		this._vacuumFull = Boolean.getBoolean("shop.migrate.vacuum.full");
+	}
+
+	/**
+	 * Method to migrate every padded column of a table.
+	 *
+	 * @param table the table name in lower case
+	 * @param columns the columns to convert and their new types
+	 * @throws java.sql.SQLException when a step fails
+	 * @throws java.lang.InterruptedException when interrupted while throttling
+	 */
+	public void migrate(String table, String[][] columns) throws SQLException, InterruptedException {
+		List<String[]> pending = new ArrayList<String[]>();
+		List<String> padded = paddedColumns(table);
+		for(String[] column : columns) {
+			if(padded.contains(column[0])) pending.add(column);
+		}
+		if(pending.isEmpty()) {
+			System.out.println(table + ": already migrated");
+			return;
+		}
+		Storage before = measure(table);
+		System.out.println(table + ": before " + before);
+
+		addShadowColumns(table, pending);
+		backfill(table, pending);
+		for(String[] column : pending) {
+			ddl("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + column[0] + SUFFIX + "_not_null");
+		}
+		List<String> copies = copyIndexes(table, pending);
+		swap(table, pending, copies);
+		vacuum(table);
+
+		Storage after = measure(table);
+		System.out.println(table + ": after  " + after);
+		System.out.println(table + ": row data " + kb(before.rowBytes - after.rowBytes) + " smaller, estimated from row widths");
+		if(_vacuumFull) {
+			System.out.println(table + ": saved " + kb(before.heap - after.heap) + " of heap, " + kb(before.indexes - after.indexes)
+				+ " of indexes, " + (before.cachePages() - after.cachePages()) + " cache page(s) for a full scan");
+		} else {
+			System.out.println(table + ": the heap keeps its " + kb(after.heap) + " until VACUUM FULL or CLUSTER rewrites it, about "
+				+ kb(after.estimatedHeap()) + " after (run with -Dshop.migrate.vacuum.full=true)");
+		}
+	}
+
+	private List<String> paddedColumns(String table) throws SQLException {
+		List<String> result = new ArrayList<String>();
+		PreparedStatement stmt = _conn.prepareStatement(PADDED_COLUMNS_QUERY);
+		stmt.setString(1, table);
+		ResultSet rs = stmt.executeQuery();
+		while(rs.next()) {
+			result.add(rs.getString(1));
+		}
+		stmt.close();
+		return result;
+	}
+
+	/*
+	 * Adds the nullable shadow columns, a NOT VALID check standing in for
+	 * NOT NULL, and the trigger that copies every write into the shadows.
+	 * None of this rewrites or scans the table.
+	 */
+	private void addShadowColumns(String table, List<String[]> columns) throws SQLException, InterruptedException {
+		StringBuilder assignments = new StringBuilder();
+		StringBuilder sources = new StringBuilder();
+		for(String[] column : columns) {
+			ddl("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + column[0] + SUFFIX + " " + column[1]);
+			ddl("ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + column[0] + SUFFIX + "_not_null");
+			ddl("ALTER TABLE " + table + " ADD CONSTRAINT " + column[0] + SUFFIX + "_not_null CHECK (" + column[0] + SUFFIX + " IS NOT NULL) NOT VALID");
+			assignments.append("\tNEW.").append(column[0]).append(SUFFIX).append(" := rtrim(NEW.").append(column[0]).append(");\n");
+			sources.append(sources.length() == 0 ? "" : ", ").append(column[0]);
+		}
+		ddl("CREATE OR REPLACE FUNCTION " + table + "_dual_write() RETURNS trigger AS $$\nBEGIN\n" + assignments + "\tRETURN NEW;\nEND;\n$$ LANGUAGE plpgsql");
+		ddl("DROP TRIGGER IF EXISTS " + table + "_dual_write ON " + table);
+		ddl("CREATE TRIGGER " + table + "_dual_write BEFORE INSERT OR UPDATE ON " + table + " FOR EACH ROW EXECUTE PROCEDURE " + table + "_dual_write()");
+		System.out.println(table + ": dual write on " + sources);
+	}
+
+	/*
+	 * Fills the shadow columns of existing rows in id-range batches, each
+	 * committed on its own, sleeping between batches to leave room for the
+	 * shop's own traffic.
+	 */
+	private void backfill(String table, List<String[]> columns) throws SQLException, InterruptedException {
+		StringBuilder set = new StringBuilder();
+		StringBuilder missing = new StringBuilder();
+		for(String[] column : columns) {
+			set.append(set.length() == 0 ? "" : ", ").append(column[0]).append(SUFFIX).append(" = rtrim(").append(column[0]).append(")");
+			missing.append(missing.length() == 0 ? "" : " OR ").append(column[0]).append(SUFFIX).append(" IS NULL");
+		}
+		Statement bounds = _conn.createStatement();
+		ResultSet rs = bounds.executeQuery("SELECT min(id), max(id) FROM " + table);
+		rs.next();
+		int low = rs.getInt(1);
+		int high = rs.getInt(2);
+		bounds.close();
+
+		PreparedStatement stmt = _conn.prepareStatement("UPDATE " + table + " SET " + set + " WHERE id >= ? AND id < ? AND (" + missing + ")");
+		long updated = 0;
+		long start = System.currentTimeMillis();
+		for(long from = low; from <= high; from += _batch) {
+			long batchStart = System.currentTimeMillis();
+			stmt.setLong(1, from);
+			stmt.setLong(2, from + _batch);
+			updated += stmt.executeUpdate();
+			Thread.sleep(Math.max(_pauseMillis, System.currentTimeMillis() - batchStart));
+		}
+		stmt.close();
+		System.out.println(table + ": backfilled " + updated + " row(s) in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/*
+	 * Builds a copy of every index over a migrated column on its shadow
+	 * column, without blocking writes, and returns the copies' names.
+	 */
+	private List<String> copyIndexes(String table, List<String[]> columns) throws SQLException, InterruptedException {
+		List<String> copies = new ArrayList<String>();
+		Map<String, String> definitions = new LinkedHashMap<String, String>();
+		PreparedStatement stmt = _conn.prepareStatement(INDEXES_QUERY);
+		stmt.setString(1, table);
+		ResultSet rs = stmt.executeQuery();
+		while(rs.next()) {
+			definitions.put(rs.getString(1), rs.getString(2));
+		}
+		stmt.close();
+		for(Map.Entry<String, String> index : definitions.entrySet()) {
+			String name = index.getKey();
+			if(name.endsWith(SUFFIX)) continue;
+			//the column list follows the table name
+			int on = index.getValue().indexOf(" USING ");
+			String head = index.getValue().substring(0, on);
+			String body = index.getValue().substring(on);
+			String copied = body;
+			for(String[] column : columns) {
+				copied = copied.replaceAll("\\b" + column[0] + "\\b", column[0] + SUFFIX);
+			}
+			if(copied.equals(body)) continue;
+			head = head.replaceFirst("INDEX " + name + " ON", "INDEX CONCURRENTLY " + name + SUFFIX + " ON");
+			//a concurrent build only waits for older transactions, so it
+			//runs without the lock timeout; a failed earlier run leaves an
+			//invalid copy behind that is dropped first
+			Statement build = _conn.createStatement();
+			build.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name + SUFFIX);
+			build.execute(head + copied);
+			build.close();
+			copies.add(name);
+		}
+		return copies;
+	}
+
+	/*
+	 * Replaces the old columns with the shadows in one transaction. The
+	 * validated checks let SET NOT NULL skip its scan, so the exclusive lock
+	 * is held only for catalog changes.
+	 */
+	private void swap(String table, List<String[]> columns, List<String> copies) throws SQLException, InterruptedException {
+		List<String> steps = new ArrayList<String>();
+		steps.add("LOCK TABLE " + table + " IN ACCESS EXCLUSIVE MODE");
+		steps.add("DROP TRIGGER " + table + "_dual_write ON " + table);
+		steps.add("DROP FUNCTION " + table + "_dual_write()");
+		for(String[] column : columns) {
+			steps.add("ALTER TABLE " + table + " DROP COLUMN " + column[0]);
+			steps.add("ALTER TABLE " + table + " RENAME COLUMN " + column[0] + SUFFIX + " TO " + column[0]);
+			steps.add("ALTER TABLE " + table + " ALTER COLUMN " + column[0] + " SET NOT NULL");
+			steps.add("ALTER TABLE " + table + " DROP CONSTRAINT " + column[0] + SUFFIX + "_not_null");
+		}
+		for(String index : copies) {
+			steps.add("ALTER INDEX " + index + SUFFIX + " RENAME TO " + index);
+		}
+		ddl(steps.toArray(new String[steps.size()]));
+		System.out.println(table + ": swapped " + columns.size() + " column(s) and " + copies.size() + " index(es)");
+	}
+
+	/*
+	 * Rewrites the table with VACUUM FULL when asked to, under the lock
+	 * timeout like any other DDL; otherwise a plain VACUUM makes the row
+	 * versions left by the backfill reusable and refreshes the statistics.
+	 */
+	private void vacuum(String table) throws SQLException, InterruptedException {
+		if(_vacuumFull) {
+			ddl("VACUUM FULL ANALYZE " + table);
+			return;
+		}
+		Statement vacuum = _conn.createStatement();
+		vacuum.execute("VACUUM ANALYZE " + table);
+		vacuum.close();
+	}
+
+	/*
+	 * Runs statements in one transaction under a short lock timeout, retrying
+	 * when the lock cannot be had in time (SQLState 55P03).
+	 */
+	private void ddl(String... statements) throws SQLException, InterruptedException {
+		for(int attempt = 1; ; ++attempt) {
+			Statement stmt = _conn.createStatement();
+			try {
+				stmt.execute("SET lock_timeout = " + _lockTimeoutMillis);
+				if(statements.length == 1) {
+					stmt.execute(statements[0]);
+				} else {
+					_conn.setAutoCommit(false);
+					for(String sql : statements) {
+						stmt.execute(sql);
+					}
+					_conn.commit();
+				}
+				return;
+			} catch(SQLException e) {
+				if(!_conn.getAutoCommit()) _conn.rollback();
+				if(!"55P03".equals(e.getSQLState()) || attempt >= 10) throw e;
+				System.out.println("Lock busy, retrying: " + statements[0]);
+				Thread.sleep(_pauseMillis * attempt);
+			} finally {
+				_conn.setAutoCommit(true);
+				stmt.execute("SET lock_timeout = 0");
+				stmt.close();
+			}
+		}
+	}
+
+	private Storage measure(String table) throws SQLException {
+		Storage storage = new Storage();
+		PreparedStatement stmt = _conn.prepareStatement(STORAGE_QUERY);
+		stmt.setString(1, table);
+		stmt.setString(2, table);
+		stmt.setString(3, table);
+		ResultSet rs = stmt.executeQuery();
+		rs.next();
+		storage.heap = rs.getLong(1);
+		storage.indexes = rs.getLong(2);
+		storage.total = rs.getLong(3);
+		stmt.close();
+
+		//a whole row would still carry the bytes of dropped columns, so the
+		//width is summed over the live columns plus the 24 byte tuple header
+		StringBuilder width = new StringBuilder("24");
+		stmt = _conn.prepareStatement(COLUMNS_QUERY);
+		stmt.setString(1, table);
+		rs = stmt.executeQuery();
+		while(rs.next()) {
+			width.append(" + COALESCE(pg_column_size(T.\"").append(rs.getString(1)).append("\"), 0)");
+		}
+		stmt.close();
+		Statement rows = _conn.createStatement();
+		rs = rows.executeQuery("SELECT count(*), COALESCE(sum(" + width + "), 0) FROM " + table + " T");
+		rs.next();
+		storage.rows = rs.getLong(1);
+		storage.rowBytes = rs.getLong(2);
+		rows.close();
+
+		//actual shared buffers in use, when the pg_buffercache extension is installed
+		storage.buffers = -1;
+		Statement check = _conn.createStatement();
+		rs = check.executeQuery("SELECT 1 FROM pg_extension WHERE extname = 'pg_buffercache'");
+		boolean installed = rs.next();
+		check.close();
+		if(installed) {
+			stmt = _conn.prepareStatement(BUFFERS_QUERY);
+			stmt.setString(1, table);
+			stmt.setString(2, table);
+			rs = stmt.executeQuery();
+			rs.next();
+			storage.buffers = rs.getLong(1);
+			stmt.close();
+		}
+		return storage;
+	}
+
+	private static String kb(long bytes){
+		return (bytes / 1024) + "kB";
+	}
+
+	static class Storage {
+		long heap;
+		long indexes;
+		long total;
+		long rows;
+		long rowBytes;
+		long buffers;
+
+		//8kB pages a full scan pulls into the cache
+		long cachePages(){
+			return (heap + indexes + 8191) / 8192;
+		}
+
+		//heap size once rewritten: the rows' width, which includes their
+		//tuple header, plus a 4 byte line pointer each, at fillfactor 100
+		long estimatedHeap(){
+			long perPage = 8192 - 24;
+			long used = rowBytes + rows * 4;
+			return (used + perPage - 1) / perPage * 8192;
+		}
+
+		public String toString(){
+			return "heap " + kb(heap) + ", indexes " + kb(indexes) + ", total " + kb(total) + ", " + rows + " row(s) averaging "
+				+ (rows == 0 ? 0 : rowBytes / rows) + " bytes" + (buffers < 0 ? "" : ", " + buffers + " shared buffer(s) cached");
+		}
+	}
+
+	/**
+	 * Command line entry point, e.g. SchemaMigration mydb 5432 me customer
+	 *
+	 * @param args dbname port user [table...]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + SchemaMigration.class.getName () +
+		            " <dbname> <port> <user> [" + String.join("|", COLUMNS.keySet()) + "...]");
+			return;
+		}//end if
+		List<String> tables = args.length > 3 ? Arrays.asList(args).subList(3, args.length) : new ArrayList<String>(COLUMNS.keySet());
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		try (Connection conn = DriverManager.getConnection(url, args[2], "")) {
+			SchemaMigration migration = new SchemaMigration(conn);
+			for(String table : tables) {
+				String[][] columns = COLUMNS.get(table.toLowerCase());
+				if(columns == null) throw new IllegalArgumentException("Unknown table " + table + ", expected one of " + COLUMNS.keySet());
+				migration.migrate(table.toLowerCase(), columns);
+			}
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * This class defines the console input shared by the menu methods. Lines
+ * typed at the console are passed to the WorkloadRecorder, and a replay
+ * thread can substitute its own recorded lines, so the same menu code serves
+ * live sessions and any number of concurrent replayed ones.
+ *
+ */
+
+public class SessionInput extends BufferedReader {
+	private static final ThreadLocal<BufferedReader> _replay = new ThreadLocal<BufferedReader>();
+
+	public SessionInput(Reader console){
+		super(console);
+	}
+
+	/**
+	 * Method to read the next line, from the calling thread's replay source
+	 * when it has one and from the console otherwise.
+	 *
+	 * @throws Exhausted when a replayed operation asks for more input than
+	 * was recorded, which happens when the database state has diverged
+	 */
+	public String readLine() throws IOException {
+		BufferedReader replay = _replay.get();
+		if(replay != null) {
+			String line = replay.readLine();
+			if(line == null) throw new Exhausted();
+			return line;
+		}
+		String line = super.readLine();
+		WorkloadRecorder.input(line);
+		return line;
+	}
+
+	/**
+	 * Method to feed the calling thread's reads from a replay source until
+	 * endReplay() is called.
+	 */
+	public static void replay(BufferedReader source){
+		_replay.set(source);
+	}
+
+	public static void endReplay(){
+		_replay.remove();
+	}
+
+	/**
+	 * Raised when replayed input runs out. It is an Error so that the menu
+	 * methods' retry loops, which catch Exception, cannot swallow it.
+	 */
+	public static class Exhausted extends Error {
+		private static final long serialVersionUID = 1L;
+
+		Exhausted(){
+			super("Replayed operation needs more input than was recorded", null, false, false);
+		}
+	}
+}
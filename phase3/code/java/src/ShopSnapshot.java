@@ -0,0 +1,463 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class defines the snapshot on disk of the TicketBoard's open tickets,
+ * so a restarted process maps the last snapshot instead of scanning the
+ * service requests for open ones.
+ *
+ * Catching up after a load reads every ticket of the snapshot again, so
+ * closures, deletions and updates since it was written are seen exactly,
+ * and adds the open tickets with rids past a floor kept -Dshop.snapshot.lookback
+ * ids (default 1000) below the newest rid, since ids come from sequences
+ * and commit out of order. A request committed later still, e.g. by a long
+ * transaction, with a rid under the floor would be missed. Catching up
+ * therefore compares the open requests the database counts in the lookback
+ * window under the floor, where such late commits land, with the tickets
+ * there still open; when they differ the board is rebuilt from full scans.
+ * The check reads only that window, so its cost does not grow with the
+ * tables; a request reopened further below the floor is picked up by the
+ * next full rebuild instead.
+ *
+ * While running, the board follows other instances through the
+ * ChangeListener. The snapshot is written to -Dshop.snapshot (default
+ * shop.snapshot) every -Dshop.snapshot.interval.s seconds (default 300) and
+ * when the shop closes, by the one process holding a FileChannel lock on
+ * its .lock file; other processes sharing the path only read it.
+ *
+ */
+
+public class ShopSnapshot {
+	static final long MAGIC = 0x53484F50534E4150L; // SHOPSNAP
+	static final int FORMAT_VERSION = 3;
+	static final int HEADER_BYTES = 64;
+
+	static final int TICKETS = 1;
+
+	static final String FLOOR_QUERY = "SELECT COALESCE(MAX(rid), 0) FROM Service_Request";
+	//open requests in the window under a floor, read by rid range
+	static final String OPEN_BELOW_QUERY = "SELECT COUNT(*) FROM Service_Request S WHERE S.rid > ? AND S.rid <= ? AND NOT EXISTS (SELECT 1 FROM Closed_Request C WHERE C.rid = S.rid)";
+
+	private final File _file;
+	private final TicketBoard _board;
+	private final long _lookback;
+	private long _database;
+	//every open request with a rid up to the floor is on the board
+	private long _floor = -1;
+	private FileChannel _lockChannel = null;
+	private FileLock _lock = null;
+	private ScheduledExecutorService _scheduler = null;
+
+	// how the board was last brought up, for printStatistics
+	private String _origin = "empty";
+	private long _writtenBytes = 0;
+	private long _writtenMillis = 0;
+
+	private ShopSnapshot(File file, TicketBoard board){
+		this._file = file;
+		this._board = board;
+		this._lookback = Long.getLong("shop.snapshot.lookback", 1000L);
+	}
+
+	/**
+	 * Method to bring up the board: from the snapshot file plus the changes
+	 * since when the file is intact, belongs to this database and the floor
+	 * check passes, otherwise from a full scan.
+	 *
+	 * @param conn the connection to read from
+	 * @param board the board the open tickets go to
+	 * @return the snapshot, current as of the call
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public static ShopSnapshot open(Connection conn, TicketBoard board) throws SQLException {
+		ShopSnapshot snapshot = new ShopSnapshot(new File(System.getProperty("shop.snapshot", "shop.snapshot")), board);
+		long start = System.currentTimeMillis();
+		snapshot._database = databaseId(conn);
+		snapshot.lock();
+		boolean loaded = false;
+		if(snapshot._file.exists()) {
+			try {
+				loaded = snapshot.load();
+			} catch(IOException | RuntimeException e) {
+				System.err.println("Ignoring snapshot " + snapshot._file + ": " + e.getMessage());
+				snapshot.reset();
+			}
+		}
+		long caughtUp = loaded ? snapshot.catchUp(conn) : -1;
+		if(loaded && caughtUp < 0) {
+			System.err.println("Snapshot " + snapshot._file + " misses requests committed under its floor, rebuilding");
+			snapshot.reset();
+		}
+		if(caughtUp < 0) snapshot.rebuild(conn);
+		snapshot._origin = (caughtUp >= 0 ? "snapshot + " + caughtUp + " row(s) read" : "full rebuild")
+			+ " in " + (System.currentTimeMillis() - start) + "ms";
+		return snapshot;
+	}
+
+	/*
+	 * Takes the lock that makes this process the snapshot's writer. A
+	 * process that finds it taken reads the snapshot but never writes it,
+	 * so two shops in one directory cannot overwrite each other's .tmp.
+	 */
+	private void lock(){
+		try {
+			_lockChannel = FileChannel.open(new File(_file.getPath() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			_lock = _lockChannel.tryLock();
+		} catch(IOException | OverlappingFileLockException e) {
+			_lock = null;
+		}
+		if(_lock == null) {
+			System.err.println("Snapshot " + _file + " is written by another process; this one only reads it");
+			closeLock();
+		}
+	}
+
+	private void closeLock(){
+		try {
+			if(_lock != null) _lock.release();
+			if(_lockChannel != null) _lockChannel.close();
+		} catch(IOException e) {
+			// ignored.
+		}
+		_lock = null;
+		_lockChannel = null;
+	}
+
+	private static long databaseId(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT oid FROM pg_database WHERE datname = current_database()");
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void reset(){
+		for(TicketBoard.Ticket ticket : _board.tickets()) {
+			_board.close(ticket.rid);
+		}
+		_floor = -1;
+	}
+
+	/*
+	 * Loads every open ticket and sets the floor, in one consistent
+	 * snapshot.
+	 */
+	private synchronized void rebuild(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		try {
+			_board.rebuild(conn);
+			_floor = newestRid(conn) - _lookback;
+		} finally {
+			conn.rollback();
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Method to bring the loaded board up to date: its tickets are read
+	 * again, closing those no longer open, and the open tickets past the
+	 * floor are added. Everything is read in one consistent snapshot of the
+	 * database, after which the floor moves up to the newest rid less the
+	 * lookback.
+	 *
+	 * @param conn the connection to read from
+	 * @return the number of rows read, or -1 if the database counts more
+	 * open requests in the window under the floor than the board holds,
+	 * i.e. the floor hid a late commit or a reopened request and the board
+	 * must be rebuilt
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public synchronized long catchUp(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		long rows = 0;
+		try {
+			Set<Integer> known = new HashSet<Integer>();
+			for(TicketBoard.Ticket ticket : _board.tickets()) {
+				known.add(ticket.rid);
+			}
+			PreparedStatement reread = conn.prepareStatement(TicketBoard.OPEN_REQUESTS_QUERY + " AND S.rid = ANY(?)");
+			reread.setArray(1, conn.createArrayOf("integer", known.toArray()));
+			ResultSet rs = reread.executeQuery();
+			long windowStart = _floor - _lookback;
+			long openBelow = 0;
+			while(rs.next()) {
+				TicketBoard.Ticket ticket = readTicket(rs);
+				_board.refresh(ticket);
+				known.remove(ticket.rid);
+				if(ticket.rid > windowStart && ticket.rid <= _floor) openBelow++;
+				rows++;
+			}
+			reread.close();
+			//what is left was closed or deleted since the snapshot
+			for(Integer rid : known) {
+				_board.close(rid);
+			}
+
+			PreparedStatement counted = conn.prepareStatement(OPEN_BELOW_QUERY);
+			counted.setLong(1, windowStart);
+			counted.setLong(2, _floor);
+			rs = counted.executeQuery();
+			rs.next();
+			long expected = rs.getLong(1);
+			counted.close();
+			if(expected != openBelow) return -1;
+
+			PreparedStatement opened = conn.prepareStatement(TicketBoard.OPEN_REQUESTS_QUERY + " AND S.rid > ?");
+			opened.setLong(1, _floor);
+			rs = opened.executeQuery();
+			while(rs.next()) {
+				_board.refresh(readTicket(rs));
+				rows++;
+			}
+			opened.close();
+			_floor = Math.max(_floor, newestRid(conn) - _lookback);
+			return rows;
+		} finally {
+			conn.rollback();
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static long newestRid(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(FLOOR_QUERY);
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static TicketBoard.Ticket readTicket(ResultSet rs) throws SQLException {
+		return new TicketBoard.Ticket(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getString(6));
+	}
+
+	/**
+	 * Method to start writing the snapshot in the background.
+	 */
+	public void start(){
+		int interval = Integer.getInteger("shop.snapshot.interval.s", 300);
+		if(interval <= 0 || _lock == null) return;
+		_scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "shop-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		_scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				write();
+			} catch(IOException | RuntimeException e) {
+				System.err.println("Snapshot failed: " + e.getMessage());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to stop the background writes, write a last snapshot if this
+	 * process is the writer and release the lock.
+	 */
+	public void close(){
+		if(_scheduler != null) _scheduler.shutdownNow();
+		try {
+			if(_lock != null) write();
+		} catch(IOException | RuntimeException e) {
+			System.err.println("Snapshot failed: " + e.getMessage());
+		}
+		closeLock();
+	}
+
+	/**
+	 * Method to write the open tickets and the floor to the snapshot file.
+	 * The file is built next to the old one and renamed over it, so a crash
+	 * while writing leaves the previous snapshot in place.
+	 *
+	 * @throws java.io.IOException when the file cannot be written or another
+	 * process holds the lock
+	 */
+	public synchronized void write() throws IOException {
+		if(_lock == null) throw new IOException(_file + " is written by another process");
+		long start = System.currentTimeMillis();
+		List<byte[][]> tickets = new ArrayList<byte[][]>();
+		List<TicketBoard.Ticket> open = new ArrayList<TicketBoard.Ticket>();
+		long ticketBytes = 4;
+		for(TicketBoard.Ticket ticket : _board.tickets()) {
+			byte[][] text = { utf8(ticket.vin), utf8(ticket.date), utf8(ticket.complaint) };
+			ticketBytes += 12 + 6 + text[0].length + text[1].length + text[2].length;
+			tickets.add(text);
+			open.add(ticket);
+		}
+		long size = HEADER_BYTES + section(ticketBytes);
+
+		File tmp = new File(_file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			out.position(HEADER_BYTES);
+
+			int at = beginSection(out, TICKETS);
+			out.putInt(open.size());
+			for(int i = 0; i < open.size(); ++i) {
+				TicketBoard.Ticket ticket = open.get(i);
+				out.putInt(ticket.rid);
+				out.putInt(ticket.customerId);
+				out.putInt(ticket.odometer);
+				for(byte[] text : tickets.get(i)) {
+					out.putShort((short) text.length);
+					out.put(text);
+				}
+			}
+			endSection(out, at);
+
+			out.putLong(0, MAGIC);
+			out.putInt(8, FORMAT_VERSION);
+			out.putInt(12, 1);
+			out.putLong(16, _database);
+			out.putLong(24, _floor);
+			out.putLong(48, System.currentTimeMillis());
+			out.putInt(56, crc(out, 0, 56));
+			out.force();
+		}
+		Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		_writtenBytes = size;
+		_writtenMillis = System.currentTimeMillis() - start;
+	}
+
+	/*
+	 * Maps the snapshot and restores the board from it. Returns false
+	 * when it belongs to another database; throws when it is damaged.
+	 */
+	private synchronized boolean load() throws IOException {
+		try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() < HEADER_BYTES) throw new IOException("truncated header");
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(in.getLong(0) != MAGIC) throw new IOException("not a shop snapshot");
+			if(in.getInt(8) != FORMAT_VERSION) throw new IOException("format version " + in.getInt(8) + ", expected " + FORMAT_VERSION);
+			if(in.getInt(56) != crc(in, 0, 56)) throw new IOException("header checksum mismatch");
+			if(in.getLong(16) != _database) return false;
+			int sections = in.getInt(12);
+			in.position(HEADER_BYTES);
+			for(int i = 0; i < sections; ++i) {
+				int type = in.getInt();
+				int length = in.getInt();
+				int checksum = in.getInt();
+				in.getInt();
+				if(length < 0 || length > in.remaining()) throw new IOException("truncated section " + type);
+				if(crc(in, in.position(), length) != checksum) throw new IOException("checksum mismatch in section " + type);
+				ByteBuffer payload = in.slice();
+				payload.limit(length);
+				readSection(type, payload);
+				in.position(in.position() + align(length));
+			}
+			_floor = in.getLong(24);
+			return true;
+		}
+	}
+
+	private void readSection(int type, ByteBuffer in){
+		if(type == TICKETS) {
+			int count = in.getInt();
+			for(int i = 0; i < count; ++i) {
+				int rid = in.getInt();
+				int customerId = in.getInt();
+				int odometer = in.getInt();
+				String vin = readUtf8(in);
+				String date = readUtf8(in);
+				String complaint = readUtf8(in);
+				_board.open(new TicketBoard.Ticket(rid, customerId, vin, date, odometer, complaint));
+			}
+		}
+		//sections of unknown types are skipped, so newer writers can add some
+	}
+
+	/*
+	 * Sections are a 16 byte header (type, length, CRC32 of the payload,
+	 * padding) followed by the payload padded to 8 bytes.
+	 */
+	private static long section(long payload){
+		return 16 + align(payload);
+	}
+
+	private static long align(long length){
+		return (length + 7) & ~7L;
+	}
+
+	private static int align(int length){
+		return (length + 7) & ~7;
+	}
+
+	private static int beginSection(ByteBuffer out, int type){
+		out.putInt(type);
+		out.putLong(0);
+		out.putInt(0);
+		return out.position();
+	}
+
+	private static void endSection(ByteBuffer out, int payloadStart){
+		int length = out.position() - payloadStart;
+		out.putInt(payloadStart - 12, length);
+		out.putInt(payloadStart - 8, crc(out, payloadStart, length));
+		out.position(payloadStart + align(length));
+	}
+
+	private static int crc(ByteBuffer buffer, int from, int length){
+		ByteBuffer range = buffer.duplicate();
+		range.limit(from + length);
+		range.position(from);
+		CRC32 crc = new CRC32();
+		crc.update(range);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] utf8(String value){
+		byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+		return bytes.length > Short.MAX_VALUE ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+	}
+
+	private static String readUtf8(ByteBuffer in){
+		byte[] bytes = new byte[in.getShort()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Method to print how the board was brought up and the last write.
+	 */
+	public void printStatistics(){
+		System.out.println("Snapshot " + _file + ": loaded from " + _origin + (_lock == null ? ", read only" : ""));
+		System.out.println("\tfloor rid " + _floor + "; " + _board.size() + " open ticket(s)");
+		if(_writtenBytes > 0) System.out.println("\tlast written: " + (_writtenBytes >> 10) + "KB in " + _writtenMillis + "ms");
+	}
+}
@@ -0,0 +1,295 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines the shared in-memory board of open service requests.
+ * Tickets are indexed by rid, VIN and customer so mechanics can pick work
+ * without reading the database, and a ticket is claimed with a
+ * compare-and-set so two mechanics cannot close the same rid. Writes made by
+ * other instances reach the board through the ChangeListener.
+ *
+ */
+
+public class TicketBoard implements ChangeListener.Handler {
+	public static final int UNCLAIMED = -1;
+
+	static final String OPEN_REQUESTS_QUERY = "SELECT S.rid, S.customer_id, S.car_vin, S.date, S.odometer, S.complain FROM Service_Request S WHERE S.rid NOT IN (SELECT C.rid FROM Closed_Request C)";
+
+	private final ConcurrentHashMap<Integer, Ticket> _byRid = new ConcurrentHashMap<Integer, Ticket>();
+	private final ConcurrentHashMap<String, Set<Integer>> _byVin = new ConcurrentHashMap<String, Set<Integer>>();
+	private final ConcurrentHashMap<Integer, Set<Integer>> _byCustomer = new ConcurrentHashMap<Integer, Set<Integer>>();
+	//rids whose closure is journaled but not yet in Closed_Request; reads
+	//of the database still see them open and must not put them back
+	private final Set<Integer> _closing = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Method to reload every open service request from the database.
+	 *
+	 * @param conn the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void rebuild(Connection conn) throws SQLException {
+		//only tickets already on the board may be dropped; ones opened while
+		//the query runs are newer than its snapshot
+		Set<Integer> stale = new HashSet<Integer>(_byRid.keySet());
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery(OPEN_REQUESTS_QUERY);
+		while(rs.next()) {
+			Ticket ticket = readTicket(rs);
+			stale.remove(ticket.rid);
+			open(ticket);
+		}
+		stmt.close();
+		for(Integer rid : stale) {
+			close(rid);
+		}
+	}
+
+	/**
+	 * Method to patch the board from change notifications sent by other
+	 * MechanicShop instances. Every request named by a change is read again
+	 * in one query and kept on the board only if it is still open, so the
+	 * order of the changes in the batch does not matter and updates are
+	 * applied too.
+	 */
+	public void onChanges(List<ChangeListener.Change> changes, Connection conn) throws SQLException {
+		Set<Integer> touched = new HashSet<Integer>();
+		for(ChangeListener.Change change : changes) {
+			if(change.table.equals("service_request")) {
+				touched.add(Integer.parseInt(change.keys[0]));
+			} else if(change.table.equals("closed_request")) {
+				touched.add(Integer.parseInt(change.keys[1]));
+			}
+		}
+		reload(touched, conn);
+	}
+
+	/**
+	 * Method to read the given requests again, keeping those still open on
+	 * the board and removing the rest.
+	 */
+	public void reload(Set<Integer> rids, Connection conn) throws SQLException {
+		if(rids.isEmpty()) return;
+		Set<Integer> touched = new HashSet<Integer>(rids);
+		PreparedStatement stmt = conn.prepareStatement(OPEN_REQUESTS_QUERY + " AND S.rid = ANY(?)");
+		stmt.setArray(1, conn.createArrayOf("integer", touched.toArray()));
+		ResultSet rs = stmt.executeQuery();
+		while(rs.next()) {
+			Ticket ticket = readTicket(rs);
+			refresh(ticket);
+			touched.remove(ticket.rid);
+		}
+		stmt.close();
+		for(Integer rid : touched) {
+			close(rid);
+		}
+	}
+
+	public void onResync(Connection conn) throws SQLException {
+		rebuild(conn);
+	}
+
+	private static Ticket readTicket(ResultSet rs) throws SQLException {
+		return new Ticket(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getString(6));
+	}
+
+	/**
+	 * Method to add a newly inserted service request to the board.
+	 */
+	public void open(Ticket ticket){
+		if(_closing.contains(ticket.rid)) return;
+		if(_byRid.putIfAbsent(ticket.rid, ticket) != null) return;
+		_byVin.computeIfAbsent(ticket.vin, k -> ConcurrentHashMap.newKeySet()).add(ticket.rid);
+		_byCustomer.computeIfAbsent(ticket.customerId, k -> ConcurrentHashMap.newKeySet()).add(ticket.rid);
+		//a closure journaled while the ticket was being added wins
+		if(_closing.contains(ticket.rid)) close(ticket.rid);
+	}
+
+	/**
+	 * Method to put a service request read again on the board, replacing
+	 * the ticket held for its rid if any field changed. The replacement
+	 * keeps the old ticket's claim.
+	 */
+	public void refresh(Ticket ticket){
+		if(_closing.contains(ticket.rid)) return;
+		Ticket old = _byRid.get(ticket.rid);
+		if(old != null) {
+			if(old.sameAs(ticket)) return;
+			ticket.claimedBy.set(old.claimedBy.get());
+			close(old.rid);
+		}
+		open(ticket);
+	}
+
+	/**
+	 * Method to remove a closed service request from the board.
+	 */
+	public void close(int rid){
+		Ticket ticket = _byRid.remove(rid);
+		if(ticket == null) return;
+		_byVin.computeIfPresent(ticket.vin, (k, rids) -> { rids.remove(rid); return rids.isEmpty() ? null : rids; });
+		_byCustomer.computeIfPresent(ticket.customerId, (k, rids) -> { rids.remove(rid); return rids.isEmpty() ? null : rids; });
+	}
+
+	/**
+	 * Method to keep a service request whose closure is being journaled from
+	 * being put back on the board until the closure is settled.
+	 */
+	public void closing(int rid){
+		_closing.add(rid);
+	}
+
+	/**
+	 * Method to forget a closure once the journal has applied or refused
+	 * it; a refused one comes back with the next read of the request.
+	 */
+	public void settled(int rid){
+		_closing.remove(rid);
+	}
+
+	/**
+	 * Method to claim an open ticket for a mechanic.
+	 *
+	 * @return true if this mechanic now holds the ticket, false if it is
+	 * closed or another mechanic claimed it first
+	 */
+	public boolean claim(int rid, int mechId){
+		Ticket ticket = _byRid.get(rid);
+		return ticket != null && ticket.claimedBy.compareAndSet(UNCLAIMED, mechId);
+	}
+
+	/**
+	 * Method to hand a claimed ticket back to the board.
+	 */
+	public void release(int rid, int mechId){
+		Ticket ticket = _byRid.get(rid);
+		if(ticket != null) {
+			ticket.claimedBy.compareAndSet(mechId, UNCLAIMED);
+		}
+	}
+
+	/**
+	 * Method to return the unclaimed tickets ordered by rid.
+	 */
+	public List<Ticket> unclaimed(){
+		List<Ticket> result = new ArrayList<Ticket>();
+		for(Ticket ticket : _byRid.values()) {
+			if(ticket.claimedBy.get() == UNCLAIMED) {
+				result.add(ticket);
+			}
+		}
+		Collections.sort(result, Comparator.comparingInt(t -> t.rid));
+		return result;
+	}
+
+	/**
+	 * Method to return the tickets a mechanic holds, ordered by rid.
+	 */
+	public List<Ticket> claimedBy(int mechId){
+		List<Ticket> result = new ArrayList<Ticket>();
+		for(Ticket ticket : _byRid.values()) {
+			if(ticket.claimedBy.get() == mechId) {
+				result.add(ticket);
+			}
+		}
+		Collections.sort(result, Comparator.comparingInt(t -> t.rid));
+		return result;
+	}
+
+	/**
+	 * Method to return every open ticket ordered by rid.
+	 */
+	public List<Ticket> tickets(){
+		List<Ticket> result = new ArrayList<Ticket>(_byRid.values());
+		Collections.sort(result, Comparator.comparingInt(t -> t.rid));
+		return result;
+	}
+
+	/**
+	 * Method to count the claimed tickets per mechanic.
+	 */
+	public Map<Integer, Integer> claimedCounts(){
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for(Ticket ticket : _byRid.values()) {
+			int mechId = ticket.claimedBy.get();
+			if(mechId != UNCLAIMED) counts.merge(mechId, 1, Integer::sum);
+		}
+		return counts;
+	}
+
+	public Ticket get(int rid){
+		return _byRid.get(rid);
+	}
+
+	public List<Ticket> forVin(String vin){
+		return lookup(_byVin.get(vin));
+	}
+
+	public List<Ticket> forCustomer(int customerId){
+		return lookup(_byCustomer.get(customerId));
+	}
+
+	public int size(){
+		return _byRid.size();
+	}
+
+	private List<Ticket> lookup(Set<Integer> rids){
+		List<Ticket> result = new ArrayList<Ticket>();
+		if(rids == null) return result;
+		for(Integer rid : rids) {
+			Ticket ticket = _byRid.get(rid);
+			if(ticket != null) result.add(ticket);
+		}
+		Collections.sort(result, Comparator.comparingInt(t -> t.rid));
+		return result;
+	}
+
+	/**
+	 * An open service request on the board.
+	 */
+	public static class Ticket {
+		public final int rid;
+		public final int customerId;
+		public final String vin;
+		public final String date;
+		public final int odometer;
+		public final String complaint;
+		final AtomicInteger claimedBy = new AtomicInteger(UNCLAIMED);
+
+		public Ticket(int rid, int customerId, String vin, String date, int odometer, String complaint){
+			this.rid = rid;
+			this.customerId = customerId;
+			this.vin = vin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complaint = complaint;
+		}
+
+		public int claimedBy(){
+			return claimedBy.get();
+		}
+
+		boolean sameAs(Ticket other){
+			return customerId == other.customerId && odometer == other.odometer && Objects.equals(vin, other.vin)
+				&& Objects.equals(date, other.date) && Objects.equals(complaint, other.complaint);
+		}
+
+		public String toString(){
+			return "RID:" + rid + ", Customer:" + customerId + ", VIN:" + vin + ", " + date + ", " + odometer + ", " + complaint;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class defines a dictionary from VINs to dense int ids, held off the
+ * Java heap so tens of millions of entries cost the garbage collector
+ * nothing. Each VIN is packed at 6 bits per character into 12 bytes, stored
+ * with one int value per id (e.g. the owner's customer id), and found
+ * through an open-addressing table of ids with linear probing. VINs are
+ * read straight from byte arrays, so no String is created per row.
+ *
+ * VINs of up to 16 characters from 0-9, A-Z and a-z are accepted. Letters
+ * keep their case, as Car.vin does, so "abc" and "ABC" are two VINs. The
+ * dictionary is not thread-safe.
+ *
+ */
+
+public class VinDictionary {
+	public static final int ABSENT = -1;
+	public static final int MAX_LENGTH = 16;
+
+	private static final int ENTRY_BYTES = 16;
+	private static final int VALUE_OFFSET = 12;
+	private static final float LOAD_FACTOR = 0.7f;
+	//the slot table is one direct buffer, which holds at most 2GB
+	private static final int MAX_SLOTS = 1 << 28;
+
+	//6 bit code of each byte, 0 for characters a VIN cannot contain
+	private static final byte[] CODES = new byte[256];
+	private static final char[] CHARS = new char[64];
+	static {
+		//62 characters and the padding code 0 fit in 6 bits
+		String alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+		for(int i = 0; i < alphabet.length(); ++i) {
+			char c = alphabet.charAt(i);
+			CODES[c] = (byte) (i + 1);
+			CHARS[i + 1] = c;
+		}
+	}
+
+	//id + 1 per slot, 0 for an empty slot
+	private ByteBuffer _slots;
+	private int _mask;
+	//12 packed key bytes and a 4 byte value per id
+	private ByteBuffer _entries;
+	private int _size = 0;
+
+	// packed halves of the last key parsed
+	private long _high;
+	private long _low;
+
+	/**
+	 * Creates a dictionary sized for the expected number of VINs; it grows
+	 * past that as needed.
+	 */
+	public VinDictionary(int expected){
+		int slots = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_SLOTS, expected / LOAD_FACTOR)) - 1) << 1;
+		this._slots = ByteBuffer.allocateDirect(slots * 4);
+		this._mask = slots - 1;
+		this._entries = ByteBuffer.allocateDirect(Math.max(16, expected) * ENTRY_BYTES);
+	}
+
+	/**
+	 * Method to return the id of a VIN, adding it if it is new. A new VIN
+	 * gets the next id, i.e. size() - 1 after the call, and value 0.
+	 *
+	 * @param buf the bytes holding the VIN
+	 * @param off where the VIN starts
+	 * @param len the VIN length
+	 * @return the VIN's id, or ABSENT when it is not a valid VIN
+	 */
+	public int intern(byte[] buf, int off, int len){
+		if(!pack(buf, off, len)) return ABSENT;
+		int slot = probe();
+		int id = _slots.getInt(slot << 2) - 1;
+		if(id != ABSENT) return id;
+		if(_size >= (int) ((_mask + 1) * LOAD_FACTOR)) {
+			if(_mask + 1 == MAX_SLOTS) throw new IllegalStateException("VIN dictionary is full");
+			rehash((_mask + 1) << 1);
+			slot = probe();
+		}
+		id = _size++;
+		if(id * ENTRY_BYTES == _entries.capacity()) {
+			_entries = grow(_entries, Math.min(_entries.capacity() * 2L, Integer.MAX_VALUE & -ENTRY_BYTES));
+		}
+		int at = id * ENTRY_BYTES;
+		_entries.putLong(at, (_high << 16) | (_low >>> 32));
+		_entries.putInt(at + 8, (int) _low);
+		_entries.putInt(at + VALUE_OFFSET, 0);
+		_slots.putInt(slot << 2, id + 1);
+		return id;
+	}
+
+	/**
+	 * Method to return the id of a VIN without adding it.
+	 *
+	 * @return the VIN's id, or ABSENT when it is unknown or not a valid VIN
+	 */
+	public int find(byte[] buf, int off, int len){
+		if(!pack(buf, off, len)) return ABSENT;
+		return _slots.getInt(probe() << 2) - 1;
+	}
+
+	/**
+	 * Method to return the id of a VIN given as a String.
+	 */
+	public int find(String vin){
+		byte[] bytes = vin.trim().getBytes(StandardCharsets.US_ASCII);
+		return find(bytes, 0, bytes.length);
+	}
+
+	public int value(int id){
+		return _entries.getInt(id * ENTRY_BYTES + VALUE_OFFSET);
+	}
+
+	public void setValue(int id, int value){
+		_entries.putInt(id * ENTRY_BYTES + VALUE_OFFSET, value);
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	/**
+	 * Method to return the VIN of an id as a String, for reporting.
+	 */
+	public String vin(int id){
+		long high = _entries.getLong(id * ENTRY_BYTES) >>> 16;
+		long low = ((_entries.getLong(id * ENTRY_BYTES) & 0xFFFF) << 32) | (_entries.getInt(id * ENTRY_BYTES + 8) & 0xFFFFFFFFL);
+		StringBuilder vin = new StringBuilder(MAX_LENGTH);
+		unpack(vin, high);
+		unpack(vin, low);
+		return vin.toString();
+	}
+
+	private static void unpack(StringBuilder vin, long half){
+		for(int shift = 42; shift >= 0; shift -= 6) {
+			int code = (int) (half >>> shift) & 63;
+			if(code != 0) vin.append(CHARS[code]);
+		}
+	}
+
+	/**
+	 * Method to return the off-heap bytes in use.
+	 */
+	public long bytes(){
+		return (long) _slots.capacity() + _entries.capacity();
+	}
+
+	public String toString(){
+		return "VIN dictionary: " + _size + " VIN(s), " + (_mask + 1) + " slots, " + (bytes() >> 20) + "MB off-heap";
+	}
+
+	/*
+	 * Packs 8 characters into each 48 bit half, padding short VINs with
+	 * code 0 so they never equal a longer one.
+	 */
+	private boolean pack(byte[] buf, int off, int len){
+		if(len <= 0 || len > MAX_LENGTH) return false;
+		long high = 0, low = 0;
+		for(int i = 0; i < MAX_LENGTH; ++i) {
+			int code = 0;
+			if(i < len) {
+				code = CODES[buf[off + i] & 0xFF];
+				if(code == 0) return false;
+			}
+			if(i < 8) high = (high << 6) | code;
+			else low = (low << 6) | code;
+		}
+		_high = high;
+		_low = low;
+		return true;
+	}
+
+	/*
+	 * Returns the slot holding the packed key, or the empty slot where it
+	 * belongs.
+	 */
+	private int probe(){
+		int slot = hash(_high, _low) & _mask;
+		long key = (_high << 16) | (_low >>> 32);
+		int tail = (int) _low;
+		while(true) {
+			int id = _slots.getInt(slot << 2) - 1;
+			if(id == ABSENT) return slot;
+			int at = id * ENTRY_BYTES;
+			if(_entries.getLong(at) == key && _entries.getInt(at + 8) == tail) return slot;
+			slot = (slot + 1) & _mask;
+		}
+	}
+
+	private static int hash(long high, long low){
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private void rehash(int slots){
+		_slots = ByteBuffer.allocateDirect(slots * 4);
+		_mask = slots - 1;
+		for(int id = 0; id < _size; ++id) {
+			int at = id * ENTRY_BYTES;
+			long key = _entries.getLong(at);
+			long high = key >>> 16;
+			long low = ((key & 0xFFFF) << 32) | (_entries.getInt(at + 8) & 0xFFFFFFFFL);
+			int slot = hash(high, low) & _mask;
+			while(_slots.getInt(slot << 2) != 0) {
+				slot = (slot + 1) & _mask;
+			}
+			_slots.putInt(slot << 2, id + 1);
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, long capacity){
+		if(capacity == buffer.capacity()) throw new IllegalStateException("VIN dictionary is full");
+		ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		grown.put(source);
+		grown.clear();
+		return grown;
+	}
+}
@@ -0,0 +1,169 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class defines the warm-up run at startup, before the menu accepts
+ * input, so the first customer at the desk does not pay for class loading,
+ * JIT compilation and the server's first planning of every statement. It
+ * plans every operation's statements on the session and commit coordinator
+ * connections, fills the report cache from parallel connections, then runs
+ * the read-only lookups and report rendering repeatedly with output
+ * discarded. Each phase of startup is timed and reported. Disabled with
+ * -Dshop.warmup=false.
+ *
+ */
+
+public class WarmStart {
+	//representative literal forms of the statements the menu builds
+	static final String[] INTAKE_STATEMENTS = {
+		"INSERT INTO customer(fname, lname, phone, address) VALUES ('a', 'b', '(000)000-0000', 'c')",
+		"INSERT INTO mechanic(fname, lname, experience) VALUES ('a', 'b', 1)",
+		"INSERT INTO car(vin, make, model, year) VALUES ('0', 'a', 'b', 2000)",
+		"INSERT INTO owns (customer_id, car_vin) VALUES ('0', '0')",
+		"SELECT M.id FROM Mechanic M WHERE M.id = 0",
+		"SELECT id, lname FROM Customer LIMIT 1",
+		ReportCache.VERSIONS_QUERY,
+		TicketBoard.OPEN_REQUESTS_QUERY
+	};
+	//parameterized statements run on the commit coordinator's connection
+	static final String[] COORDINATOR_STATEMENTS = {
+		IntakeJournal.INSERT_APPLIED,
+		IntakeJournal.INSERT_SERVICE_REQUEST,
+		IntakeJournal.INSERT_CLOSED_REQUEST,
+		MechanicDispatcher.INSERT_ASSIGNMENT
+	};
+
+	private final List<String> _phases = new ArrayList<String>();
+	private final List<Long> _nanos = new ArrayList<Long>();
+	private final long _start = System.nanoTime();
+	private long _mark = _start;
+
+	/**
+	 * Method to close the phase running since the previous call.
+	 */
+	public void phase(String name){
+		long now = System.nanoTime();
+		_phases.add(name);
+		_nanos.add(now - _mark);
+		_mark = now;
+	}
+
+	/**
+	 * Method to warm up a freshly connected session.
+	 *
+	 * @param esql the session the console will use
+	 * @param url the database URL, for the parallel preload connections
+	 * @throws java.lang.Exception when a warm-up query fails
+	 */
+	public void run(MechanicShop esql, String url, String user, String passwd) throws Exception {
+		esql.setOperation(Operation.OTHER);
+		for(String sql : INTAKE_STATEMENTS) {
+			esql.explain(sql);
+		}
+		for(Report report : Report.values()) {
+			esql.explain(report.sql(10));
+		}
+		esql.explain(FleetQueries.customersWithAtLeast(20));
+		esql.explain(FleetQueries.customersWithAtLeast(0));
+		esql.explain(FleetQueries.histogram());
+		CommitCoordinator.await(esql.getCoordinator().submit(WorkloadClass.INTAKE, conn -> {
+			for(String sql : COORDINATOR_STATEMENTS) {
+				PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + sql);
+				long parameters = sql.chars().filter(c -> c == '?').count();
+				for(int i = 1; i <= parameters; ++i) {
+					stmt.setNull(i, Types.OTHER);
+				}
+				stmt.execute();
+				stmt.close();
+			}
+			return null;
+		}), Long.getLong("shop.commit.wait.ms", 10000L));
+		phase("plan statements");
+
+		preload(url, user, passwd);
+		phase("preload report cache");
+
+		//repeat the read paths until the JIT has compiled them; their output
+		//is discarded
+		int iterations = Integer.getInteger("shop.warmup.iterations", 50);
+		List<List<String>> sample = esql.executeQueryAndReturnResult("SELECT id, lname FROM Customer LIMIT 1");
+		PrintStream discard = new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		});
+		try {
+			for(int i = 0; i < iterations; ++i) {
+				for(Report report : Report.values()) {
+					esql.setOperation(report.operation);
+					esql.executeReport(report, 10, discard);
+				}
+				esql.setOperation(Operation.ADD_CAR);
+				esql.executeQueryAndReturnResult("SELECT * FROM Customer LIMIT 100");
+				if(!sample.isEmpty()) {
+					try {
+						esql.searchCustomers(sample.get(0).get(1).trim());
+					} catch(SQLException e) {
+						//57014: a cold search may run past its budget, which is what warming fixes
+						if(!"57014".equals(e.getSQLState())) throw e;
+					}
+					esql.loadCustomerProfile(Integer.parseInt(sample.get(0).get(0)));
+				}
+			}
+		} finally {
+			esql.setOperation(Operation.OTHER);
+		}
+		phase("compile read paths");
+	}
+
+	/*
+	 * Runs the reports in parallel on connections from a shared pool, one
+	 * per thread, and keeps the results in the shared report cache.
+	 */
+	private static void preload(String url, String user, String passwd) throws Exception {
+		Report[] reports = Report.values();
+		int threads = Math.min(reports.length, Integer.getInteger("shop.warmup.threads", 4));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ConnectionPool connections = new ConnectionPool(url, user, passwd, threads, 1, Long.getLong("db.pool.wait.ms", 5000L));
+		try {
+			List<Future<Object>> loads = new ArrayList<Future<Object>>();
+			for(Report report : reports) {
+				loads.add(pool.submit(() -> {
+					try (ConnectionPool.Pooled conn = connections.borrow()) {
+						String query = report.sql(10);
+						conn.setStatementTimeout(report.operation.deadlineSeconds);
+						try (StatementMetrics.Timer timer = StatementMetrics.shared().start(query)) {
+							timer.rows(ReportCache.shared().fetch(conn, query, report.tables).rows.size());
+						}
+					}
+					return null;
+				}));
+			}
+			for(Future<Object> load : loads) {
+				load.get();
+			}
+		} finally {
+			pool.shutdown();
+			connections.close();
+		}
+	}
+
+	/**
+	 * Method to print how long each phase of startup took.
+	 */
+	public void printReport(){
+		System.out.println("Startup:");
+		for(int i = 0; i < _phases.size(); ++i) {
+			System.out.println("\t" + _phases.get(i) + ": " + (_nanos.get(i) / 1000000) + "ms");
+		}
+		System.out.println("\ttotal: " + ((_mark - _start) / 1000000) + "ms");
+	}
+}
@@ -0,0 +1,27 @@
+/**
+ * This enum defines the workload classes admitted by AdmissionControl. Each
+ * class has its own concurrency limit, queue bound and statement timeout,
+ * read from -Dshop.admission.<class>.concurrency, .queue and .timeout.s.
+ * The limits apply to one process; see AdmissionControl.
+ *
+ */
+
+public enum WorkloadClass {
+	//front desk lookups and inserts
+	INTAKE(8, 64, 5),
+	//mechanics closing service requests
+	CLOSURE(8, 64, 10),
+	//the full history reports
+	REPORT(2, 4, 120);
+
+	public final int concurrency;
+	public final int queueBound;
+	public final int timeoutSeconds;
+
+	WorkloadClass(int concurrency, int queueBound, int timeoutSeconds){
+		String prefix = "shop.admission." + name().toLowerCase() + ".";
+		this.concurrency = Integer.getInteger(prefix + "concurrency", concurrency);
+		this.queueBound = Integer.getInteger(prefix + "queue", queueBound);
+		this.timeoutSeconds = Integer.getInteger(prefix + "timeout.s", timeoutSeconds);
+	}
+}
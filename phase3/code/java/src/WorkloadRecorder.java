@@ -0,0 +1,161 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class defines the recorder of console sessions. With
+ * -Dshop.record=file every menu operation is appended to the file as one
+ * line: the milliseconds since the previous operation, the menu choice and
+ * the lines typed for it, tab separated. The first line holds the wall clock
+ * start, so logs of several sessions can be merged by WorkloadReplay.
+ *
+ */
+
+public class WorkloadRecorder {
+	static final String HEADER = "# shop workload v1 start=";
+
+	private static BufferedWriter _out = null;
+	private static long _last = 0;
+	private static StringBuilder _current = null;
+
+	/**
+	 * Method to start recording if -Dshop.record names a file. An existing
+	 * log is appended to as a new segment.
+	 *
+	 * @throws java.io.IOException when the log cannot be opened
+	 */
+	public static synchronized void fromProperties() throws IOException {
+		String path = System.getProperty("shop.record");
+		if(path == null || _out != null) return;
+		_out = new BufferedWriter(new FileWriter(path, true));
+		_last = System.currentTimeMillis();
+		_out.write(HEADER + _last);
+		_out.newLine();
+		_out.flush();
+	}
+
+	/**
+	 * Method to mark the start of a menu operation.
+	 */
+	public static synchronized void begin(int choice){
+		if(_out == null) return;
+		long now = System.currentTimeMillis();
+		_current = new StringBuilder().append(now - _last).append('\t').append(choice);
+		_last = now;
+	}
+
+	/**
+	 * Method to add a line typed during the current operation.
+	 */
+	public static synchronized void input(String line){
+		if(_current == null || line == null) return;
+		_current.append('\t').append(escape(line));
+	}
+
+	/**
+	 * Method to write out the operation begun last.
+	 */
+	public static synchronized void end(){
+		if(_current == null) return;
+		try {
+			_out.write(_current.toString());
+			_out.newLine();
+			_out.flush();
+		} catch(IOException e) {
+			System.err.println("Could not record operation: " + e.getMessage());
+		}
+		_current = null;
+	}
+
+	public static synchronized void close(){
+		if(_out == null) return;
+		try {
+			_out.close();
+		} catch(IOException e) {
+			// ignored.
+		}
+		_out = null;
+	}
+
+	/**
+	 * Method to read the operations of a log in order, with absolute
+	 * timestamps.
+	 *
+	 * @throws java.io.IOException when the log cannot be read or is malformed
+	 */
+	public static List<Recorded> read(File file) throws IOException {
+		List<Recorded> result = new ArrayList<Recorded>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			long at = -1;
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(HEADER)) {
+					at = Long.parseLong(line.substring(HEADER.length()).trim());
+					continue;
+				}
+				if(line.isEmpty()) continue;
+				if(at < 0) throw new IOException(file + " does not start with a workload header");
+				String[] fields = line.split("\t", -1);
+				at += Long.parseLong(fields[0]);
+				String[] inputs = new String[fields.length - 2];
+				for(int i = 0; i < inputs.length; ++i) {
+					inputs[i] = unescape(fields[i + 2]);
+				}
+				result.add(new Recorded(at, Integer.parseInt(fields[1]), inputs));
+			}
+		} catch(NumberFormatException e) {
+			throw new IOException(file + " is malformed: " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static String escape(String value){
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\r", "\\r").replace("\n", "\\n");
+	}
+
+	private static String unescape(String value){
+		if(value.indexOf('\\') < 0) return value;
+		StringBuilder result = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if(c != '\\' || i + 1 == value.length()) {
+				result.append(c);
+				continue;
+			}
+			c = value.charAt(++i);
+			result.append(c == 't' ? '\t' : c == 'r' ? '\r' : c == 'n' ? '\n' : c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * One recorded menu operation.
+	 */
+	public static class Recorded {
+		public final long at;
+		public final int choice;
+		public final String[] inputs;
+
+		Recorded(long at, int choice, String[] inputs){
+			this.at = at;
+			this.choice = choice;
+			this.inputs = inputs;
+		}
+
+		/**
+		 * Method to return the recorded lines as a reader for SessionInput.
+		 */
+		public BufferedReader reader(){
+			return new BufferedReader(new StringReader(String.join("\n", inputs) + (inputs.length == 0 ? "" : "\n")));
+		}
+	}
+}
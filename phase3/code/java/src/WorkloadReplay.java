@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the replay of recorded console sessions against a
+ * database. Operations from one or more WorkloadRecorder logs are merged by
+ * time and released open-loop: each one arrives at its recorded offset
+ * divided by the speedup, whether or not earlier ones have finished, and
+ * waits for one of the replay sessions to pick it up. Latency is measured
+ * from arrival, so queueing behind a saturated database shows up in it, and
+ * is reported per operation as percentiles.
+ *
+ * Recorded inputs are fed to the menu methods as typed. Operations whose
+ * inputs no longer fit the database, e.g. a list choice past the end of a
+ * shorter list, are counted as diverged. An operation counts as failed when
+ * any of its statements failed or was refused admission, even though the
+ * menu methods catch such errors and only print them. Exports are skipped
+ * so a replay never writes files.
+ *
+ */
+
+public class WorkloadReplay {
+	private static final Arrival DONE = new Arrival(null, 0);
+
+	private final String _dbname;
+	private final String _dbport;
+	private final String _user;
+	private final double _speed;
+	private final int _sessions;
+	private final BlockingQueue<Arrival> _arrivals = new LinkedBlockingQueue<Arrival>();
+	private final Map<Integer, Latencies> _latencies = new TreeMap<Integer, Latencies>();
+	private final AtomicLong _diverged = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private long _skipped = 0;
+	private long _maxLateNanos = 0;
+
+	public WorkloadReplay(String dbname, String dbport, String user, double speed, int sessions){
+		this._dbname = dbname;
+		this._dbport = dbport;
+		this._user = user;
+		this._speed = speed;
+		this._sessions = sessions;
+	}
+
+	/**
+	 * Method to replay the operations and wait for all of them to finish.
+	 *
+	 * @param operations the recorded operations in time order
+	 * @return the wall time of the replay in nanoseconds
+	 * @throws java.lang.Exception when a replay session cannot connect
+	 */
+	public long replay(List<WorkloadRecorder.Recorded> operations) throws Exception {
+		List<MechanicShop> sessions = new ArrayList<MechanicShop>();
+		List<Thread> workers = new ArrayList<Thread>();
+		try {
+			for(int i = 0; i < _sessions; ++i) {
+				MechanicShop esql = new MechanicShop(_dbname, _dbport, _user, "");
+				sessions.add(esql);
+				Thread worker = new Thread(() -> work(esql), "replay-session-" + sessions.size());
+				worker.start();
+				workers.add(worker);
+			}
+
+			long start = System.nanoTime();
+			long origin = operations.isEmpty() ? 0 : operations.get(0).at;
+			for(WorkloadRecorder.Recorded operation : operations) {
+				if(operation.choice == 11 || operation.choice == Operation.EXPORT.menuChoice) {
+					++_skipped;
+					continue;
+				}
+				long due = start + (long) ((operation.at - origin) * 1000000L / _speed);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} else {
+					_maxLateNanos = Math.max(_maxLateNanos, -wait);
+				}
+				//latency counts from the due time, not from when this thread woke
+				_arrivals.add(new Arrival(operation, due));
+			}
+			for(int i = 0; i < workers.size(); ++i) {
+				_arrivals.add(DONE);
+			}
+			for(Thread worker : workers) {
+				worker.join();
+			}
+			return System.nanoTime() - start;
+		} finally {
+			for(Thread worker : workers) {
+				worker.interrupt();
+			}
+			for(MechanicShop esql : sessions) {
+				esql.cleanup();
+			}
+		}
+	}
+
+	private void work(MechanicShop esql){
+		try {
+			Arrival arrival;
+			while((arrival = _arrivals.take()) != DONE) {
+				long started = System.nanoTime();
+				long failures = esql.failures();
+				SessionInput.replay(arrival.operation.reader());
+				try {
+					MechanicShop.runOperation(esql, arrival.operation.choice);
+					if(esql.failures() > failures) _failed.incrementAndGet();
+				} catch(SessionInput.Exhausted e) {
+					_diverged.incrementAndGet();
+				} catch(Exception e) {
+					_failed.incrementAndGet();
+				} finally {
+					SessionInput.endReplay();
+				}
+				long finished = System.nanoTime();
+				latencies(arrival.operation.choice).add(finished - arrival.due, finished - started);
+			}
+		} catch(InterruptedException e) {
+			// replay aborted.
+		}
+	}
+
+	private synchronized Latencies latencies(int choice){
+		return _latencies.computeIfAbsent(choice, k -> new Latencies());
+	}
+
+	/**
+	 * Method to print the latency distribution of every operation.
+	 */
+	public void printReport(PrintStream out, long elapsedNanos){
+		long total = 0;
+		out.println("operation\tcount\tp50 ms\tp90 ms\tp99 ms\tmax ms\tservice p50 ms");
+		for(Map.Entry<Integer, Latencies> entry : _latencies.entrySet()) {
+			Latencies latencies = entry.getValue();
+			long[] response = latencies.sorted(latencies.response);
+			long[] service = latencies.sorted(latencies.service);
+			total += response.length;
+			out.println(Operation.forChoice(entry.getKey()) + "\t" + response.length + "\t" + millis(percentile(response, 50)) + "\t"
+				+ millis(percentile(response, 90)) + "\t" + millis(percentile(response, 99)) + "\t" + millis(percentile(response, 100)) + "\t"
+				+ millis(percentile(service, 50)));
+		}
+		out.println("Replayed " + total + " operation(s) in " + millis(elapsedNanos) + "ms at " + _speed + "x on " + _sessions + " session(s), "
+			+ String.format("%.1f", total * 1e9 / Math.max(1, elapsedNanos)) + " op/s");
+		out.println("Diverged " + _diverged.get() + ", failed " + _failed.get() + ", skipped " + _skipped
+			+ ", arrivals released up to " + millis(_maxLateNanos) + "ms late");
+	}
+
+	private static long percentile(long[] sorted, int p){
+		if(sorted.length == 0) return 0;
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static String millis(long nanos){
+		return String.format("%.1f", nanos / 1e6);
+	}
+
+	static class Arrival {
+		final WorkloadRecorder.Recorded operation;
+		final long due;
+
+		Arrival(WorkloadRecorder.Recorded operation, long due){
+			this.operation = operation;
+			this.due = due;
+		}
+	}
+
+	static class Latencies {
+		long[] response = new long[64];
+		long[] service = new long[64];
+		int count = 0;
+
+		synchronized void add(long responseNanos, long serviceNanos){
+			if(count == response.length) {
+				response = Arrays.copyOf(response, count * 2);
+				service = Arrays.copyOf(service, count * 2);
+			}
+			response[count] = responseNanos;
+			service[count] = serviceNanos;
+			++count;
+		}
+
+		synchronized long[] sorted(long[] values){
+			long[] result = Arrays.copyOf(values, count);
+			Arrays.sort(result);
+			return result;
+		}
+	}
+
+	/**
+	 * Command line entry point, e.g.
+	 * WorkloadReplay mydb 5432 me 10 8 monday.log tuesday.log
+	 *
+	 * @param args dbname port user speedup sessions log...
+	 */
+	public static void main(String[] args) {
+		if (args.length < 6) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + WorkloadReplay.class.getName () +
+		            " <dbname> <port> <user> <speedup 1-100> <sessions> <log>...");
+			return;
+		}//end if
+		PrintStream out = System.out;
+		try {
+			double speed = Double.parseDouble(args[3]);
+			int sessions = Integer.parseInt(args[4]);
+			if(speed < 1 || speed > 100) throw new IllegalArgumentException("Speedup must be between 1 and 100");
+			if(sessions < 1) throw new IllegalArgumentException("At least one session is needed");
+			List<WorkloadRecorder.Recorded> operations = new ArrayList<WorkloadRecorder.Recorded>();
+			for(int i = 5; i < args.length; ++i) {
+				operations.addAll(WorkloadRecorder.read(new File(args[i])));
+			}
+			operations.sort(Comparator.comparingLong(o -> o.at));
+			out.println("Replaying " + operations.size() + " operation(s)...");
+
+			//the menu methods' own output would interleave across sessions
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {}
+				public void write(byte[] b, int off, int len) {}
+			}));
+			WorkloadReplay replay = new WorkloadReplay(args[0], args[1], args[2], speed, sessions);
+			long elapsed = replay.replay(operations);
+			System.setOut(out);
+			replay.printReport(out, elapsed);
+		} catch(Exception e) {
+			System.setOut(out);
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
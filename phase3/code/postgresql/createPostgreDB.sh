@@ -12,3 +12,4 @@ sleep 1
 psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < ../sql/create.sql
 psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < ../sql/triggers.sql
 psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < ../sql/indexing.sql
+psql -h /tmp/$LOGNAME/sockets $LOGNAME"_DB" < ../sql/notify.sql
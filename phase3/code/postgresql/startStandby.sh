@@ -0,0 +1,27 @@
+#! /bin/bash
+# Starts a hot standby of the database started by startPostgreSQL.sh, fed by
+# streaming replication. Run once per standby with a different port, then
+# start MechanicShop with -Dshop.standbys=5433[,5434...].
+# The primary's defaults (wal_level=replica, max_wal_senders=10 and local
+# replication connections in pg_hba.conf) are enough since PostgreSQL 10.
+folder=/tmp/$LOGNAME
+port=${1:-5433}
+standby=$folder/standby$port
+
+#Clear Folder
+rm -rf $standby
+mkdir -p $standby/data $standby/sockets
+chmod 700 $standby/data
+
+#Copy the primary and write the settings that make this copy follow it
+pg_basebackup -h $folder/sockets -p 5432 -D $standby/data -R -X stream -c fast
+
+sleep 1
+
+#Starting Standby
+pg_ctl -o "-p $port -c hot_standby=on -c unix_socket_directories=$standby/sockets" -D $standby/data -l $standby/logfile start
+
+sleep 1
+#Checking of Standby is running and replicating
+pg_ctl -D $standby/data status
+psql -h $folder/sockets -p 5432 -d postgres -c "SELECT application_name, state, replay_lsn FROM pg_stat_replication"
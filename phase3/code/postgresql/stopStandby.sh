@@ -0,0 +1,3 @@
+#! /bin/bash
+port=${1:-5433}
+pg_ctl -D /tmp/$LOGNAME/standby$port/data stop
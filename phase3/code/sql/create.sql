@@ -4,6 +4,10 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Journal_Applied CASCADE;--OK
+DROP TABLE IF EXISTS Table_Version CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Fleet CASCADE;--OK
+DROP TABLE IF EXISTS Assignment CASCADE;--OK
 
 
 -------------
@@ -24,18 +28,18 @@ CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1970);
 CREATE TABLE Customer
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
 	phone CHAR(13) NOT NULL,
-	address CHAR(256) NOT NULL,
+	address TEXT NOT NULL,
 	PRIMARY KEY (id)
 );
 
 CREATE TABLE Mechanic
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
 	experience _YEARS NOT NULL,
 	PRIMARY KEY (id) 
 );
@@ -83,6 +87,44 @@ CREATE TABLE Closed_Request
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
 	PRIMARY KEY (wid),
+	UNIQUE (rid),
+	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+);
+
+--Idempotency keys of intake journal records already written to the database
+CREATE TABLE Journal_Applied
+(
+	idem_key VARCHAR(36) NOT NULL,
+	PRIMARY KEY (idem_key)
+);
+
+--Number of cars each customer owns, maintained by triggers on Owns
+CREATE TABLE Customer_Fleet
+(
+	customer_id INTEGER NOT NULL,
+	car_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id) ON DELETE CASCADE
+);
+
+--Change counters bumped by write triggers, used to validate cached reports;
+--each table's counter is split over shards, its version is their sum
+CREATE TABLE Table_Version
+(
+	table_name VARCHAR(32) NOT NULL,
+	shard SMALLINT NOT NULL,
+	version BIGINT NOT NULL,
+	PRIMARY KEY (table_name, shard)
+);
+
+--Mechanic each open service request was dispatched to
+CREATE TABLE Assignment
+(
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	assigned_at TIMESTAMP NOT NULL,
+	PRIMARY KEY (rid),
 	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
 );
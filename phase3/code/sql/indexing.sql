@@ -27,3 +27,38 @@ CREATE INDEX closed_request_index
 ON Closed_Request
 USING BTREE
 (wid); 
+
+/*Trigram indexes for customer search by name prefix, typo and phone*/
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX customer_lname_trgm_index
+ON Customer
+USING GIN
+(lower(lname) gin_trgm_ops);
+
+CREATE INDEX customer_fname_trgm_index
+ON Customer
+USING GIN
+(lower(fname) gin_trgm_ops);
+
+CREATE INDEX customer_phone_trgm_index
+ON Customer
+USING GIN
+(regexp_replace(phone, '[^0-9]', '', 'g') gin_trgm_ops);
+
+/*Fleet size lookups read only the counters*/
+CREATE INDEX customer_fleet_count_index
+ON Customer_Fleet
+USING BTREE
+(car_count);
+
+/*Customer profiles read a customer's open and closed requests and bill total*/
+CREATE INDEX service_request_customer_index
+ON Service_Request
+USING BTREE
+(customer_id);
+
+CREATE INDEX closed_request_rid_index
+ON Closed_Request
+USING BTREE
+(rid);
@@ -0,0 +1,137 @@
+/* Change notifications for in-process caches
+ * Each statement sends its changed rows as table:op:key;key;..., where op is
+ * I, U or D and key is the row's primary key (Owns also carries customer_id
+ * and car_vin, Closed_Request its rid, separated by ':'). An update sends
+ * the keys of the old rows as well as the new ones, so a change of a key
+ * column such as an Owns row's customer reaches both. Rows are split over
+ * as many notifications as the 8000 byte payload limit needs. A statement
+ * changing more than 1000 rows, e.g. a COPY or a migration, sends only
+ * table:op:* and listeners reload that table instead.
+ *
+ * The triggers are statement level with transition tables, so they need
+ * PostgreSQL 10 or later.
+ */
+DROP TRIGGER IF EXISTS notify_customer_change on customer;
+DROP TRIGGER IF EXISTS notify_car_change on car;
+DROP TRIGGER IF EXISTS notify_owns_change on owns;
+DROP TRIGGER IF EXISTS notify_service_request_change on service_request;
+DROP TRIGGER IF EXISTS notify_closed_request_change on closed_request;
+
+CREATE OR REPLACE FUNCTION notify_shop_change()
+RETURNS "trigger" as
+$notify_change$
+DECLARE
+	prefix TEXT;
+	source TEXT;
+	key_expr TEXT;
+	key TEXT;
+	payload TEXT := '';
+	changed BIGINT;
+BEGIN
+	prefix := TG_TABLE_NAME || ':' || substr(TG_OP, 1, 1) || ':';
+	IF TG_OP = 'DELETE' THEN
+		source := 'old_rows';
+	ELSIF TG_OP = 'UPDATE' THEN
+		source := '(SELECT * FROM old_rows UNION ALL SELECT * FROM new_rows) AS changed_rows';
+	ELSE
+		source := 'new_rows';
+	END IF;
+	EXECUTE 'SELECT COUNT(*) FROM ' || (CASE WHEN TG_OP = 'DELETE' THEN 'old_rows' ELSE 'new_rows' END) INTO changed;
+	IF changed = 0 THEN
+		RETURN NULL;
+	ELSIF changed > 1000 THEN
+		PERFORM pg_notify('shop_changes', prefix || '*');
+		RETURN NULL;
+	END IF;
+	IF TG_TABLE_NAME = 'customer' THEN
+		key_expr := 'id::text';
+	ELSIF TG_TABLE_NAME = 'car' THEN
+		key_expr := 'vin::text';
+	ELSIF TG_TABLE_NAME = 'owns' THEN
+		key_expr := 'ownership_id || '':'' || customer_id || '':'' || car_vin';
+	ELSIF TG_TABLE_NAME = 'service_request' THEN
+		key_expr := 'rid::text';
+	ELSE
+		key_expr := 'wid || '':'' || rid';
+	END IF;
+	FOR key IN EXECUTE 'SELECT DISTINCT ' || key_expr || ' FROM ' || source LOOP
+		IF length(prefix) + length(payload) + length(key) >= 7900 THEN
+			PERFORM pg_notify('shop_changes', prefix || payload);
+			payload := '';
+		END IF;
+		IF payload <> '' THEN
+			payload := payload || ';';
+		END IF;
+		payload := payload || key;
+	END LOOP;
+	PERFORM pg_notify('shop_changes', prefix || payload);
+	RETURN NULL;
+END
+$notify_change$
+LANGUAGE plpgsql VOLATILE;
+
+/* A trigger with transition tables takes one event, hence three per table */
+DROP TRIGGER IF EXISTS notify_customer_insert on customer;
+CREATE TRIGGER notify_customer_insert
+AFTER INSERT ON customer REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_customer_update on customer;
+CREATE TRIGGER notify_customer_update
+AFTER UPDATE ON customer REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_customer_delete on customer;
+CREATE TRIGGER notify_customer_delete
+AFTER DELETE ON customer REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+
+DROP TRIGGER IF EXISTS notify_car_insert on car;
+CREATE TRIGGER notify_car_insert
+AFTER INSERT ON car REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_car_update on car;
+CREATE TRIGGER notify_car_update
+AFTER UPDATE ON car REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_car_delete on car;
+CREATE TRIGGER notify_car_delete
+AFTER DELETE ON car REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+
+DROP TRIGGER IF EXISTS notify_owns_insert on owns;
+CREATE TRIGGER notify_owns_insert
+AFTER INSERT ON owns REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_owns_update on owns;
+CREATE TRIGGER notify_owns_update
+AFTER UPDATE ON owns REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_owns_delete on owns;
+CREATE TRIGGER notify_owns_delete
+AFTER DELETE ON owns REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+
+DROP TRIGGER IF EXISTS notify_service_request_insert on service_request;
+CREATE TRIGGER notify_service_request_insert
+AFTER INSERT ON service_request REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_service_request_update on service_request;
+CREATE TRIGGER notify_service_request_update
+AFTER UPDATE ON service_request REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_service_request_delete on service_request;
+CREATE TRIGGER notify_service_request_delete
+AFTER DELETE ON service_request REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+
+DROP TRIGGER IF EXISTS notify_closed_request_insert on closed_request;
+CREATE TRIGGER notify_closed_request_insert
+AFTER INSERT ON closed_request REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_closed_request_update on closed_request;
+CREATE TRIGGER notify_closed_request_update
+AFTER UPDATE ON closed_request REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
+DROP TRIGGER IF EXISTS notify_closed_request_delete on closed_request;
+CREATE TRIGGER notify_closed_request_delete
+AFTER DELETE ON closed_request REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_shop_change();
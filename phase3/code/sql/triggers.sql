@@ -108,3 +108,112 @@ CREATE TRIGGER set_close_wid
 BEFORE INSERT
 ON closed_request FOR EACH ROW
 EXECUTE PROCEDURE set_close_wid();
+
+/* Table change counters for the report cache
+ * Each table has 16 shard rows and a session bumps the one picked by its
+ * backend pid, so concurrent writers rarely wait on the same row lock; a
+ * table's version is the sum of its shards.
+ */
+INSERT INTO Table_Version (table_name, shard, version)
+SELECT table_name, shard, 0
+FROM unnest(ARRAY['customer', 'car', 'owns', 'service_request', 'closed_request']) AS table_name,
+	generate_series(0, 15) AS shard
+ON CONFLICT (table_name, shard) DO NOTHING;
+
+CREATE OR REPLACE FUNCTION bump_table_version()
+RETURNS "trigger" as
+$bump_version$
+BEGIN
+	UPDATE Table_Version SET version = version + 1
+	WHERE table_name = TG_TABLE_NAME AND shard = pg_backend_pid() % 16;
+	RETURN NULL;
+END
+$bump_version$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS bump_customer_version on customer;
+CREATE TRIGGER bump_customer_version
+AFTER INSERT OR UPDATE OR DELETE
+ON customer FOR EACH STATEMENT
+EXECUTE PROCEDURE bump_table_version();
+
+DROP TRIGGER IF EXISTS bump_car_version on car;
+CREATE TRIGGER bump_car_version
+AFTER INSERT OR UPDATE OR DELETE
+ON car FOR EACH STATEMENT
+EXECUTE PROCEDURE bump_table_version();
+
+DROP TRIGGER IF EXISTS bump_owns_version on owns;
+CREATE TRIGGER bump_owns_version
+AFTER INSERT OR UPDATE OR DELETE
+ON owns FOR EACH STATEMENT
+EXECUTE PROCEDURE bump_table_version();
+
+DROP TRIGGER IF EXISTS bump_service_request_version on service_request;
+CREATE TRIGGER bump_service_request_version
+AFTER INSERT OR UPDATE OR DELETE
+ON service_request FOR EACH STATEMENT
+EXECUTE PROCEDURE bump_table_version();
+
+DROP TRIGGER IF EXISTS bump_closed_request_version on closed_request;
+CREATE TRIGGER bump_closed_request_version
+AFTER INSERT OR UPDATE OR DELETE
+ON closed_request FOR EACH STATEMENT
+EXECUTE PROCEDURE bump_table_version();
+
+/* Customer fleet counters maintained from Owns */
+DELETE FROM Customer_Fleet;
+INSERT INTO Customer_Fleet (customer_id, car_count)
+SELECT customer_id, COUNT(*) FROM Owns GROUP BY customer_id;
+
+/* One statement level trigger per event, so a COPY or migration of Owns
+ * updates each customer's counter once instead of once per row. A counter
+ * that drops to 0 is deleted, so only customers with cars have a row */
+CREATE OR REPLACE FUNCTION maintain_fleet_count()
+RETURNS "trigger" as
+$fleet_count$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO Customer_Fleet (customer_id, car_count)
+		SELECT customer_id, COUNT(*) FROM new_rows GROUP BY customer_id
+		ON CONFLICT (customer_id) DO UPDATE SET car_count = Customer_Fleet.car_count + EXCLUDED.car_count;
+	ELSIF TG_OP = 'DELETE' THEN
+		UPDATE Customer_Fleet F SET car_count = F.car_count - D.cars
+		FROM (SELECT customer_id, COUNT(*) AS cars FROM old_rows GROUP BY customer_id) D
+		WHERE F.customer_id = D.customer_id;
+		DELETE FROM Customer_Fleet F
+		WHERE F.car_count = 0 AND F.customer_id IN (SELECT customer_id FROM old_rows);
+	ELSE
+		WITH delta AS (
+			SELECT customer_id, SUM(cars) AS cars FROM (
+				SELECT customer_id, 1 AS cars FROM new_rows
+				UNION ALL SELECT customer_id, -1 FROM old_rows) changed
+			GROUP BY customer_id HAVING SUM(cars) <> 0
+		), shrunk AS (
+			UPDATE Customer_Fleet F SET car_count = F.car_count + D.cars
+			FROM delta D WHERE F.customer_id = D.customer_id AND D.cars < 0
+		)
+		INSERT INTO Customer_Fleet (customer_id, car_count)
+		SELECT customer_id, cars FROM delta WHERE cars > 0
+		ON CONFLICT (customer_id) DO UPDATE SET car_count = Customer_Fleet.car_count + EXCLUDED.car_count;
+		DELETE FROM Customer_Fleet F
+		WHERE F.car_count = 0 AND F.customer_id IN (SELECT customer_id FROM old_rows);
+	END IF;
+	RETURN NULL;
+END
+$fleet_count$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS maintain_fleet_count on owns;
+DROP TRIGGER IF EXISTS maintain_fleet_insert on owns;
+CREATE TRIGGER maintain_fleet_insert
+AFTER INSERT ON owns REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE maintain_fleet_count();
+DROP TRIGGER IF EXISTS maintain_fleet_update on owns;
+CREATE TRIGGER maintain_fleet_update
+AFTER UPDATE ON owns REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE maintain_fleet_count();
+DROP TRIGGER IF EXISTS maintain_fleet_delete on owns;
+CREATE TRIGGER maintain_fleet_delete
+AFTER DELETE ON owns REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE maintain_fleet_count();